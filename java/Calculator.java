@@ -1,31 +1,65 @@
+import calc.cli.StreamEvaluator;
+import calc.engine.CalculationTape;
+import calc.engine.CalculatorEngine;
+import calc.engine.EngineMetrics;
+import calc.engine.ExpressionDisplay;
+import calc.engine.LogBase;
+import calc.engine.ResultFormat;
+import calc.history.HistoryLog;
+import calc.history.HistoryReplay;
+import calc.server.CalculatorServer;
+import calc.ui.BusyIndicator;
+import calc.ui.TaskLane;
+import calc.units.Dimension;
+import calc.units.Unit;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Paths;
 import javax.swing.*;
 
 public class Calculator extends JFrame {
     
     private final JTabbedPane tabbedPane;
+    private final EngineMetrics metrics = new EngineMetrics();
+    private final CalculatorEngine engine = new CalculatorEngine(null, metrics);
+    // Set with -Dcalc.history=FILE; null when history is off
+    private final HistoryLog history = openHistory();
+    
+    private static final int MAX_LABEL_CHARS = 48;
+    // Significant digits shown on the conversion and logarithm tabs
+    private static final ResultFormat CONVERSION_FORMAT = new ResultFormat(6);
+    private static final ResultFormat LOG_FORMAT = new ResultFormat(8);
+    
+    // Calculations run off the Event Dispatch Thread, one lane per tab
+    private final BusyIndicator busyIndicator = new BusyIndicator();
+    private final TaskLane standardLane = new TaskLane("standard-calculations", busyIndicator);
+    private final TaskLane conversionLane = new TaskLane("conversion-calculations", busyIndicator);
+    private final TaskLane logLane = new TaskLane("log-calculations", busyIndicator);
     
     // Standard calculator components
     private JPanel standardPanel;
     private JTextField displayField;
     private JLabel expressionLabel;
     private String currentExpression = "";
-    private String totalExpression = "";
-    private final HashMap<String, String> operations;
+    // Set when the entry is a computed value, from % or MR, which is then
+    // pushed as is rather than parsed back from its text
+    private boolean entryComputed;
+    private double entryValue;
+    private final CalculationTape tape = new CalculationTape();
     
-    // Length conversion components
+    // Unit conversion components
     private JPanel conversionPanel;
     private JTextField conversionValueField;
-    private JComboBox<String> fromUnitCombo;
-    private JComboBox<String> toUnitCombo;
+    private JComboBox<Dimension> dimensionCombo;
+    private JComboBox<Unit> fromUnitCombo;
+    private JComboBox<Unit> toUnitCombo;
     private JTextField conversionResultField;
     
     // Logarithm components
     private JPanel logPanel;
     private JTextField logValueField;
-    private JComboBox<String> logTypeCombo;
+    private JComboBox<LogBase> logTypeCombo;
     private JTextField logResultField;
     
     public Calculator() {
@@ -36,30 +70,26 @@ public class Calculator extends JFrame {
         setResizable(false);
         setLocationRelativeTo(null);
         
-        // Initialize operations map
-        operations = new HashMap<>();
-        operations.put("/", "÷");
-        operations.put("*", "×");
-        operations.put("-", "-");
-        operations.put("+", "+");
+        // Make the evaluation metrics visible to JConsole and other JMX clients
+        metrics.register("ui");
         
         // Create a tabbed pane
         tabbedPane = new JTabbedPane();
         tabbedPane.setFont(new Font("Arial", Font.BOLD, 12));
         tabbedPane.setBackground(new Color(240, 240, 240));
         
-        // Set up tabs
+        // Set up the standard tab; the others are built the first time they are selected
         setupStandardCalculator();
-        setupConversionCalculator();
-        setupLogarithmCalculator();
         
         // Add tabs to the tabbed pane
         tabbedPane.addTab("Standard", standardPanel);
-        tabbedPane.addTab("Length Conversion", conversionPanel);
-        tabbedPane.addTab("Logarithm", logPanel);
+        tabbedPane.addTab("Unit Conversion", new JPanel());
+        tabbedPane.addTab("Logarithm", new JPanel());
+        tabbedPane.addChangeListener(e -> buildSelectedTab());
         
-        // Add the tabbed pane to the JFrame
+        // Add the tabbed pane to the JFrame, with the progress bar for slow calculations below it
         add(tabbedPane);
+        add(busyIndicator.getComponent(), BorderLayout.SOUTH);
         
         // Add keyboard listener for the standard calculator
         addKeyListener(new KeyAdapter() {
@@ -82,6 +112,19 @@ public class Calculator extends JFrame {
         });
     }
     
+    // Builds the selected tab's panel in place of its placeholder on first use,
+    // so startup only pays for the standard tab
+    private void buildSelectedTab() {
+        int index = tabbedPane.getSelectedIndex();
+        if (index == 1 && conversionPanel == null) {
+            setupConversionCalculator();
+            tabbedPane.setComponentAt(1, conversionPanel);
+        } else if (index == 2 && logPanel == null) {
+            setupLogarithmCalculator();
+            tabbedPane.setComponentAt(2, logPanel);
+        }
+    }
+    
     private void setupStandardCalculator() {
         standardPanel = new JPanel();
         standardPanel.setLayout(new BorderLayout());
@@ -114,10 +157,24 @@ public class Calculator extends JFrame {
         standardPanel.add(displayPanel, BorderLayout.NORTH);
         
         // Create buttons panel with improved styling
-        JPanel buttonsPanel = new JPanel(new GridLayout(5, 4, 8, 8));
+        JPanel buttonsPanel = new JPanel(new GridLayout(6, 4, 8, 8));
         buttonsPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 15, 10));
         buttonsPanel.setBackground(new Color(240, 240, 240));
         
+        // Memory row
+        JButton memoryClearButton = createStyledButton("MC", new Color(220, 235, 220));
+        memoryClearButton.addActionListener(e -> clearMemory());
+        JButton memoryRecallButton = createStyledButton("MR", new Color(220, 235, 220));
+        memoryRecallButton.addActionListener(e -> recallMemory());
+        JButton memoryAddButton = createStyledButton("M+", new Color(220, 235, 220));
+        memoryAddButton.addActionListener(e -> addToMemory(false));
+        JButton memorySubtractButton = createStyledButton("M-", new Color(220, 235, 220));
+        memorySubtractButton.addActionListener(e -> addToMemory(true));
+        buttonsPanel.add(memoryClearButton);
+        buttonsPanel.add(memoryRecallButton);
+        buttonsPanel.add(memoryAddButton);
+        buttonsPanel.add(memorySubtractButton);
+        
         // Create styled buttons
         JButton clearButton = createStyledButton("C", new Color(255, 150, 150));
         clearButton.addActionListener(e -> clearAll());
@@ -182,7 +239,7 @@ public class Calculator extends JFrame {
     }
     
     private JButton createOperatorButton(String operator) {
-        JButton button = createStyledButton(operations.get(operator), new Color(230, 230, 255));
+        JButton button = createStyledButton(ExpressionDisplay.symbolFor(operator), new Color(230, 230, 255));
         button.addActionListener(e -> appendOperator(operator));
         return button;
     }
@@ -212,15 +269,25 @@ public class Calculator extends JFrame {
             }
             // Handle backspace for removing last character
             else if (keyCode == KeyEvent.VK_BACK_SPACE) {
-                if (!currentExpression.isEmpty()) {
-                    currentExpression = currentExpression.substring(0, currentExpression.length() - 1);
-                    displayField.setText(currentExpression);
-                }
+                removeLastCharacter();
             }
             // Handle percent key
             else if (keyChar == '%') {
                 calculatePercent();
             }
+            // Memory keys: Ctrl+L, Ctrl+R, Ctrl+P and Ctrl+Q
+            else if (e.isControlDown() && keyCode == KeyEvent.VK_L) {
+                clearMemory();
+            }
+            else if (e.isControlDown() && keyCode == KeyEvent.VK_R) {
+                recallMemory();
+            }
+            else if (e.isControlDown() && keyCode == KeyEvent.VK_P) {
+                addToMemory(false);
+            }
+            else if (e.isControlDown() && keyCode == KeyEvent.VK_Q) {
+                addToMemory(true);
+            }
         }
     }
     
@@ -244,29 +311,37 @@ public class Calculator extends JFrame {
         conversionValueField = new JTextField(15);
         contentPanel.add(conversionValueField, gbc);
         
-        // From unit selection
+        // Quantity selection
         gbc.gridx = 0;
         gbc.gridy = 1;
+        contentPanel.add(new JLabel("Quantity:"), gbc);
+        
+        gbc.gridx = 1;
+        dimensionCombo = new JComboBox<>(Dimension.values());
+        dimensionCombo.addActionListener(e -> updateUnitChoices());
+        contentPanel.add(dimensionCombo, gbc);
+        
+        // From unit selection
+        gbc.gridx = 0;
+        gbc.gridy = 2;
         contentPanel.add(new JLabel("Convert From:"), gbc);
         
         gbc.gridx = 1;
-        String[] lengthUnits = {"Meters", "Centimeters", "Kilometers", "Inches", "Feet", "Miles"};
-        fromUnitCombo = new JComboBox<>(lengthUnits);
+        fromUnitCombo = new JComboBox<>();
         contentPanel.add(fromUnitCombo, gbc);
         
         // To unit selection
         gbc.gridx = 0;
-        gbc.gridy = 2;
+        gbc.gridy = 3;
         contentPanel.add(new JLabel("Convert To:"), gbc);
         
         gbc.gridx = 1;
-        toUnitCombo = new JComboBox<>(lengthUnits);
-        toUnitCombo.setSelectedIndex(1); // Default to centimeters
+        toUnitCombo = new JComboBox<>();
         contentPanel.add(toUnitCombo, gbc);
         
         // Convert button
         gbc.gridx = 0;
-        gbc.gridy = 3;
+        gbc.gridy = 4;
         gbc.gridwidth = 2;
         gbc.fill = GridBagConstraints.NONE;
         gbc.anchor = GridBagConstraints.CENTER;
@@ -276,7 +351,7 @@ public class Calculator extends JFrame {
         
         // Result display
         gbc.gridx = 0;
-        gbc.gridy = 4;
+        gbc.gridy = 5;
         gbc.gridwidth = 1;
         gbc.fill = GridBagConstraints.HORIZONTAL;
         contentPanel.add(new JLabel("Result:"), gbc);
@@ -286,6 +361,7 @@ public class Calculator extends JFrame {
         conversionResultField.setEditable(false);
         contentPanel.add(conversionResultField, gbc);
         
+        updateUnitChoices();
         conversionPanel.add(contentPanel, BorderLayout.NORTH);
         
         // Add keyboard event for conversion input
@@ -299,6 +375,16 @@ public class Calculator extends JFrame {
         });
     }
     
+    // Offers the units of the selected quantity in both unit lists
+    private void updateUnitChoices() {
+        Dimension dimension = (Dimension) dimensionCombo.getSelectedItem();
+        Unit[] units = engine.getUnits().units(dimension).toArray(new Unit[0]);
+        fromUnitCombo.setModel(new DefaultComboBoxModel<>(units));
+        toUnitCombo.setModel(new DefaultComboBoxModel<>(units));
+        toUnitCombo.setSelectedIndex(1); // Default to the second unit, e.g. centimeters
+        conversionResultField.setText("");
+    }
+    
     private void setupLogarithmCalculator() {
         logPanel = new JPanel();
         logPanel.setLayout(new BorderLayout());
@@ -324,8 +410,7 @@ public class Calculator extends JFrame {
         contentPanel.add(new JLabel("Log Type:"), gbc);
         
         gbc.gridx = 1;
-        String[] logTypes = {"Natural Log (ln)", "Log base 10 (log10)", "Log base 2 (log2)"};
-        logTypeCombo = new JComboBox<>(logTypes);
+        logTypeCombo = new JComboBox<>(LogBase.values());
         contentPanel.add(logTypeCombo, gbc);
         
         // Calculate button
@@ -363,186 +448,280 @@ public class Calculator extends JFrame {
         });
     }
     
+    // Standard tab input goes through its lane, so keys pressed while an
+    // entry is still being evaluated apply after it, in order
     private void addToExpression(String value) {
-        currentExpression += value;
-        displayField.setText(currentExpression);
+        standardLane.run(() -> {
+            startEntry();
+            if (entryComputed) {
+                // Typing replaces a computed value
+                currentExpression = "";
+                entryComputed = false;
+            }
+            currentExpression += value;
+            displayField.setText(currentExpression);
+        });
+    }
+    
+    private void removeLastCharacter() {
+        standardLane.run(() -> {
+            if (!currentExpression.isEmpty()) {
+                entryComputed = false;
+                currentExpression = currentExpression.substring(0, currentExpression.length() - 1);
+                displayField.setText(currentExpression);
+            }
+        });
     }
     
     private void appendOperator(String operator) {
-        if (!currentExpression.isEmpty()) {
-            totalExpression += currentExpression + operator;
-            currentExpression = "";
-            expressionLabel.setText(formatExpression(totalExpression));
-            displayField.setText("");
-        } else if (!totalExpression.isEmpty()) {
-            // Replace the last operator if there's no current expression
-            totalExpression = totalExpression.substring(0, totalExpression.length() - 1) + operator;
-            expressionLabel.setText(formatExpression(totalExpression));
+        standardLane.run(() -> {
+            if (!currentExpression.isEmpty()) {
+                pushCurrentExpression(() -> {
+                    tape.setOperator(operator.charAt(0));
+                    currentExpression = "";
+                    expressionLabel.setText(labelText());
+                    displayField.setText("");
+                });
+            } else if (!tape.isEmpty()) {
+                // Replace the last operator if there's no current expression
+                tape.setOperator(operator.charAt(0));
+                expressionLabel.setText(labelText());
+            }
+        });
+    }
+    
+    // Evaluates the entry in the background, then commits it to the tape and
+    // runs andThen; the tape keeps the running result, so only the entry
+    // itself is parsed, and a computed entry is pushed as it is
+    private void pushCurrentExpression(Runnable andThen) {
+        String entry = currentExpression;
+        if (entryComputed) {
+            entryComputed = false;
+            tape.push(entryValue, entry);
+            andThen.run();
+            return;
         }
+        standardLane.submit(() -> evaluateExpression(entry), value -> {
+            tape.push(value, entry);
+            andThen.run();
+        }, this::showCalculationError);
     }
     
-    private String formatExpression(String expression) {
-        for (String op : operations.keySet()) {
-            expression = expression.replace(op, " " + operations.get(op) + " ");
+    // Long tapes show their most recent part only
+    private String labelText() {
+        CharSequence text = tape.display();
+        if (text.length() <= MAX_LABEL_CHARS) {
+            return text.toString();
         }
-        return expression;
+        return "..." + text.subSequence(text.length() - MAX_LABEL_CHARS, text.length());
     }
     
+    // Clearing makes any calculation still in progress stale
     private void clearAll() {
+        standardLane.cancel();
         currentExpression = "";
-        totalExpression = "";
+        entryComputed = false;
+        tape.clear();
         expressionLabel.setText("");
         displayField.setText("");
     }
     
     private void clearEntry() {
-        currentExpression = "";
-        displayField.setText("");
+        standardLane.run(() -> {
+            currentExpression = "";
+            entryComputed = false;
+            displayField.setText("");
+        });
     }
     
+    // The tape keeps the result as a live accumulator: operators continue
+    // from it and pressing "=" again repeats the last operation
     private void evaluate() {
+        standardLane.run(() -> {
+            if (!currentExpression.isEmpty()) {
+                pushCurrentExpression(this::completeCalculation);
+            } else if (tape.repeat()) {
+                completeCalculation();
+            }
+        });
+    }
+    
+    private void completeCalculation() {
+        expressionLabel.setText(labelText());
+        recordHistory(tape.result());
+        currentExpression = "";
+        tape.complete();
+        displayField.setText(tape.display().toString());
+    }
+    
+    // Entering a value after "=" starts a new calculation
+    private void startEntry() {
+        if (currentExpression.isEmpty() && tape.isComplete()) {
+            tape.clear();
+            expressionLabel.setText("");
+        }
+    }
+    
+    private void setComputedEntry(double value) {
+        startEntry();
+        entryComputed = true;
+        entryValue = value;
+        currentExpression = ResultFormat.SHORTEST.format(value);
+        displayField.setText(currentExpression);
+    }
+    
+    // Value shown in the display: the entry, or else the running result
+    private double displayedValue() {
+        if (entryComputed) {
+            return entryValue;
+        }
         if (!currentExpression.isEmpty()) {
+            return Double.parseDouble(currentExpression);
+        }
+        return tape.isEmpty() ? 0 : tape.result();
+    }
+    
+    private static HistoryLog openHistory() {
+        String file = System.getProperty("calc.history");
+        if (file == null) {
+            return null;
+        }
+        try {
+            return HistoryLog.open(Paths.get(file), 1000);
+        } catch (IOException e) {
+            System.err.println("History disabled: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    // A history failure must not turn a good result into an error. Entries
+    // are logged in a form the parser reads back, so --replay can check them;
+    // calculations with an infinite or NaN operand are left out
+    private void recordHistory(double result) {
+        String expression = tape.expression();
+        if (history != null && expression != null) {
             try {
-                totalExpression += currentExpression;
-                expressionLabel.setText(formatExpression(totalExpression));
-                
-                // Use our custom expression evaluator instead of JavaScript engine
-                double result = evaluateExpression(totalExpression);
-                
-                currentExpression = String.valueOf(result);
-                totalExpression = "";
-                displayField.setText(currentExpression);
+                history.append(expression, result);
             } catch (RuntimeException e) {
-                displayField.setText("Error");
-                System.out.println("Calculation error: " + e.getMessage());
-                currentExpression = "";
-                totalExpression = "";
+                metrics.recordError(e);
             }
         }
     }
     
-    // Add this custom expression evaluator method
+    // The engine has already counted the failure in its metrics
+    private void showCalculationError(RuntimeException e) {
+        displayField.setText("Error");
+        currentExpression = "";
+        entryComputed = false;
+        tape.clear();
+    }
+    
+    // Evaluation is delegated to the headless engine
     private double evaluateExpression(String expression) {
-        return new ExpressionEvaluator().evaluate(expression);
+        return engine.evaluate(expression);
     }
     
     private void calculatePercent() {
-        if (!currentExpression.isEmpty()) {
+        standardLane.run(this::applyPercent);
+    }
+    
+    // Percent of a finished result starts a new calculation from it
+    private void applyPercent() {
+        if (!currentExpression.isEmpty() || tape.isComplete()) {
             try {
-                if (!totalExpression.isEmpty() && 
-                    (totalExpression.endsWith("+") || totalExpression.endsWith("-") || 
-                     totalExpression.endsWith("*") || totalExpression.endsWith("/"))) {
-                    
-                    // Use our custom evaluator instead of JavaScript engine
-                    String baseExpr = totalExpression.substring(0, totalExpression.length() - 1);
-                    double baseValue = evaluateExpression(baseExpr);
-                    
-                    double percentage = Double.parseDouble(currentExpression) / 100;
-                    double result = baseValue * percentage;
-                    
-                    currentExpression = String.valueOf(result);
-                } else {
-                    // Just convert to percentage
-                    double value = Double.parseDouble(currentExpression);
-                    currentExpression = String.valueOf(value / 100);
+                double operand = displayedValue();
+                if (currentExpression.isEmpty()) {
+                    tape.clear();
+                    expressionLabel.setText("");
                 }
-                displayField.setText(currentExpression);
-            } catch (Exception e) {
+                setComputedEntry(tape.percent(operand));
+            } catch (RuntimeException e) {
+                metrics.recordError(e);
                 displayField.setText("Error");
                 currentExpression = "";
+                entryComputed = false;
             }
         }
     }
     
+    private void clearMemory() {
+        standardLane.run(tape::clearMemory);
+    }
+    
+    private void recallMemory() {
+        standardLane.run(() -> setComputedEntry(tape.recallMemory()));
+    }
+    
+    private void addToMemory(boolean subtract) {
+        standardLane.run(() -> {
+            try {
+                double value = displayedValue();
+                if (subtract) {
+                    tape.subtractFromMemory(value);
+                } else {
+                    tape.addToMemory(value);
+                }
+            } catch (NumberFormatException e) {
+                metrics.recordError(e);
+                displayField.setText("Error");
+            }
+        });
+    }
+    
+    // A new conversion replaces any that has not finished yet
     private void performConversion() {
         try {
             double value = Double.parseDouble(conversionValueField.getText());
-            String fromUnit = (String) fromUnitCombo.getSelectedItem();
-            String toUnit = (String) toUnitCombo.getSelectedItem();
-            
-            // Convert to meters first
-            double meters = convertToMeters(value, fromUnit);
-            
-            // Convert from meters to target unit
-            double result = convertFromMeters(meters, toUnit);
+            Unit fromUnit = (Unit) fromUnitCombo.getSelectedItem();
+            Unit toUnit = (Unit) toUnitCombo.getSelectedItem();
             
-            // Format the result with appropriate precision
-            conversionResultField.setText(String.format("%.6g", result));
+            conversionLane.cancel();
+            conversionLane.submit(() -> engine.convert(value, fromUnit.id(), toUnit.id()),
+                result -> conversionResultField.setText(CONVERSION_FORMAT.format(result)),
+                e -> {
+                    metrics.recordError(e);
+                    conversionResultField.setText("Error");
+                });
         } catch (NumberFormatException e) {
             conversionResultField.setText("Invalid input");
         }
     }
     
-    private double convertToMeters(double value, String unit) {
-        switch (unit) {
-            case "Meters":
-                return value;
-            case "Centimeters":
-                return value / 100;
-            case "Kilometers":
-                return value * 1000;
-            case "Inches":
-                return value * 0.0254;
-            case "Feet":
-                return value * 0.3048;
-            case "Miles":
-                return value * 1609.34;
-            default:
-                return value;
-        }
-    }
-    
-    private double convertFromMeters(double meters, String unit) {
-        switch (unit) {
-            case "Meters":
-                return meters;
-            case "Centimeters":
-                return meters * 100;
-            case "Kilometers":
-                return meters / 1000;
-            case "Inches":
-                return meters / 0.0254;
-            case "Feet":
-                return meters / 0.3048;
-            case "Miles":
-                return meters / 1609.34;
-            default:
-                return meters;
-        }
-    }
-    
+    // A new calculation replaces any that has not finished yet
     private void performLogCalculation() {
         try {
             double value = Double.parseDouble(logValueField.getText());
-            String logType = (String) logTypeCombo.getSelectedItem();
+            LogBase logType = (LogBase) logTypeCombo.getSelectedItem();
             
             if (value <= 0) {
                 logResultField.setText("Invalid input (must be > 0)");
                 return;
             }
             
-            double result;
-            switch (logType) {
-                case "Natural Log (ln)":
-                    result = Math.log(value);
-                    break;
-                case "Log base 10 (log10)":
-                    result = Math.log10(value);
-                    break;
-                case "Log base 2 (log2)":
-                    result = Math.log(value) / Math.log(2);
-                    break;
-                default:
-                    result = Math.log(value);
-            }
-            
-            logResultField.setText(String.format("%.8g", result));
+            logLane.cancel();
+            logLane.submit(() -> engine.logarithm(value, logType),
+                result -> logResultField.setText(LOG_FORMAT.format(result)),
+                e -> {
+                    metrics.recordError(e);
+                    logResultField.setText("Error");
+                });
         } catch (NumberFormatException e) {
             logResultField.setText("Invalid input");
         }
     }
     
     public static void main(String[] args) {
+        // Pipe, server and replay modes never touch AWT, so they also run without a display
+        if (args.length > 0 && args[0].equals("--stream")) {
+            System.exit(StreamEvaluator.run(args));
+        }
+        if (args.length > 0 && args[0].equals("--serve")) {
+            System.exit(CalculatorServer.run(args));
+        }
+        if (args.length > 0 && args[0].equals("--replay")) {
+            System.exit(HistoryReplay.run(args));
+        }
+        
         try {
             // Use a better look and feel
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -562,92 +741,4 @@ public class Calculator extends JFrame {
             calculator.requestFocus(); // Request focus for keyboard input
         });
     }
-    
-    // Add this inner class at the end of the Calculator class
-    private class ExpressionEvaluator {
-        private int pos = -1;
-        private int ch;
-        private String expr;
-        
-        public double evaluate(String expression) {
-            this.expr = expression;
-            pos = -1;
-            nextChar();
-            double x = parseExpression();
-            if (pos < expr.length()) {
-                throw new RuntimeException("Unexpected character: " + (char)ch);
-            }
-            return x;
-        }
-        
-        private void nextChar() {
-            ch = (++pos < expr.length()) ? expr.charAt(pos) : -1;
-        }
-        
-        private boolean eat(int charToEat) {
-            while (Character.isWhitespace(ch)) {
-                nextChar();
-            }
-            if (ch == charToEat) {
-                nextChar();
-                return true;
-            }
-            return false;
-        }
-        
-        private double parseExpression() {
-            double x = parseTerm();
-            while (true) {
-                if (eat('+')) {
-                    x += parseTerm();
-                } else if (eat('-')) {
-                    x -= parseTerm();
-                } else {
-                    return x;
-                }
-            }
-        }
-        
-        private double parseTerm() {
-            double x = parseFactor();
-            while (true) {
-                if (eat('*')) {
-                    x *= parseFactor();
-                } else if (eat('/')) {
-                    x /= parseFactor();
-                } else {
-                    return x;
-                }
-            }
-        }
-        
-        private double parseFactor() {
-            if (eat('+')) {
-                return parseFactor();
-            }
-            if (eat('-')) {
-                return -parseFactor();
-            }
-            
-            double x;
-            int startPos = this.pos;
-            
-            if (eat('(')) {
-                x = parseExpression();
-                eat(')');
-            } else if (Character.isDigit(ch) || ch == '.') {
-                // Parse numbers
-                StringBuilder sb = new StringBuilder();
-                while (Character.isDigit(ch) || ch == '.') {
-                    sb.append((char)ch);
-                    nextChar();
-                }
-                x = Double.parseDouble(sb.toString());
-            } else {
-                throw new RuntimeException("Unexpected character: " + (char)ch);
-            }
-            
-            return x;
-        }
-    }
 }
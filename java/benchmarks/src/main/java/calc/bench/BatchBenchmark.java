@@ -0,0 +1,93 @@
+package calc.bench;
+
+import calc.engine.BatchResult;
+import calc.engine.CalculatorEngine;
+import calc.engine.CompiledExpression;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Throughput of the bulk paths: columnar evaluation and parallel batches. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+    private static final int ROWS = 1 << 20;
+    
+    private final CalculatorEngine engine = new CalculatorEngine();
+    private CompiledExpression formula;
+    private CompiledExpression logFormula;
+    private double[][] columns;
+    private double[] results;
+    private List<String> expressions;
+    
+    @Setup
+    public void setUp() {
+        formula = engine.compile("price * (1 + rate) - price / 3", "price", "rate");
+        logFormula = engine.compile("log2(price) + ln(1 + rate) * sqrt(price)", "price", "rate");
+        Random random = new Random(42);
+        columns = new double[2][ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            columns[0][i] = random.nextDouble() * 1000;
+            columns[1][i] = random.nextDouble();
+        }
+        results = new double[ROWS];
+        expressions = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            expressions.add(random.nextInt(1000) + " * (" + random.nextInt(100) + " + 0.25) / 7");
+        }
+    }
+    
+    @Benchmark
+    public double[] columnar() {
+        formula.evaluateColumns(columns, results);
+        return results;
+    }
+    
+    @Benchmark
+    public double[] rowByRow() {
+        double[] bindings = new double[2];
+        for (int i = 0; i < ROWS; i++) {
+            bindings[0] = columns[0][i];
+            bindings[1] = columns[1][i];
+            results[i] = formula.evaluate(bindings);
+        }
+        return results;
+    }
+    
+    @Benchmark
+    public double[] columnarFunctions() {
+        logFormula.evaluateColumns(columns, results);
+        return results;
+    }
+    
+    @Benchmark
+    public double[] rowByRowFunctions() {
+        double[] bindings = new double[2];
+        for (int i = 0; i < ROWS; i++) {
+            bindings[0] = columns[0][i];
+            bindings[1] = columns[1][i];
+            results[i] = logFormula.evaluate(bindings);
+        }
+        return results;
+    }
+    
+    @Benchmark
+    public BatchResult parallelBatch() {
+        return engine.evaluateAll(expressions);
+    }
+}
@@ -0,0 +1,88 @@
+package calc.bench;
+
+import calc.engine.CalculatorEngine;
+import calc.engine.LogBase;
+import calc.units.UnitRegistry;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Cost of unit conversion, single and bulk, and of logarithms. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConversionBenchmark {
+    
+    @Param({"Miles", "Celsius"})
+    public String from;
+    
+    @Param({"NATURAL", "BASE_2"})
+    public LogBase base;
+    
+    private final CalculatorEngine engine = new CalculatorEngine();
+    private double value = 1234.5678;
+    private String to;
+    private int fromId;
+    private int toId;
+    private double[] values;
+    private double[] converted;
+    
+    @Setup
+    public void setUp() {
+        UnitRegistry units = engine.getUnits();
+        to = from.equals("Celsius") ? "Fahrenheit" : "Feet";
+        fromId = units.id(from);
+        toId = units.id(to);
+        values = new double[1 << 16];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 0.25;
+        }
+        converted = new double[values.length];
+    }
+    
+    @Benchmark
+    public double convert() {
+        return engine.convert(value, fromId, toId);
+    }
+    
+    @Benchmark
+    public double convertByName() {
+        return engine.getUnits().convert(value, from, to);
+    }
+    
+    @Benchmark
+    public double[] convertBulk() {
+        engine.getUnits().convert(values, converted, fromId, toId);
+        return converted;
+    }
+    
+    @Benchmark
+    public double logarithm() {
+        return engine.logarithm(value, base);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public double convertThreaded() {
+        return engine.convert(value, fromId, toId);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public double logarithmThreaded() {
+        return engine.logarithm(value, base);
+    }
+}
@@ -0,0 +1,304 @@
+package calc.bench;
+
+import calc.engine.CalculatorEngine;
+import calc.engine.CompiledExpression;
+import calc.engine.ExpressionCache;
+import calc.engine.FormulaSnapshot;
+import calc.history.HistoryReplay;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs generated expressions through the legacy evaluator and every
+ * evaluation path of the engine, and reports any result that differs by
+ * more than the allowed ULPs or succeeds on one side only. Zero is compared
+ * with its sign when no ULPs are allowed. Mismatching inputs are shrunk
+ * before they are printed. Then it times each path over the same inputs and
+ * appends operations per second and bytes allocated per operation to a
+ * results file, so a change that alters answers or slows the engine shows
+ * up between runs.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar calc.bench.DifferentialFuzz [--cases N] [--seed S]
+ *      [--max-ulps N] [--results FILE]
+ * </pre>
+ *
+ * <p>The exit status is 0 when every path matches the legacy evaluator, 1 otherwise.
+ */
+public final class DifferentialFuzz {
+    private static final String USAGE = "Usage: java -cp target/benchmarks.jar calc.bench.DifferentialFuzz"
+        + " [--cases N] [--seed S] [--max-ulps N] [--results FILE]";
+    private static final int MAX_SAMPLES = 10;
+    private static final int TIMED_PASSES = 3;
+    private static final double[] NO_BINDINGS = new double[0];
+    private static final double[][] NO_COLUMNS = new double[0][];
+    // Keeps timed results live so the loops are not optimized away
+    private static volatile double sink;
+    
+    // An evaluation path under test; throws where the expression is invalid
+    private interface Evaluation {
+        double evaluate(String expression);
+    }
+    
+    private DifferentialFuzz() {
+    }
+    
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+    
+    public static int run(String[] args) {
+        int cases = 200_000;
+        long seed = 42;
+        long maxUlps = 0;
+        Path results = Paths.get("fuzz-results.tsv");
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--cases") && i + 1 < args.length) {
+                    cases = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--seed") && i + 1 < args.length) {
+                    seed = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--max-ulps") && i + 1 < args.length) {
+                    maxUlps = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--results") && i + 1 < args.length) {
+                    results = Paths.get(args[++i]);
+                } else {
+                    System.err.println(USAGE);
+                    return 2;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        try {
+            return fuzz(cases, seed, maxUlps, results) ? 0 : 1;
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+    
+    private static boolean fuzz(int cases, long seed, long maxUlps, Path results) throws IOException {
+        ExpressionFuzzer fuzzer = new ExpressionFuzzer(seed);
+        String[] inputs = new String[cases];
+        for (int i = 0; i < cases; i++) {
+            inputs[i] = fuzzer.next();
+        }
+    
+        List<String> names = new ArrayList<>();
+        List<Evaluation> paths = new ArrayList<>();
+        CalculatorEngine engine = new CalculatorEngine();
+        names.add("compiled");
+        paths.add(engine::evaluate);
+        CalculatorEngine cached = new CalculatorEngine(new ExpressionCache(4096));
+        names.add("cached");
+        paths.add(cached::evaluate);
+        names.add("columns");
+        paths.add(expression -> {
+            double[] result = new double[1];
+            engine.compile(expression).evaluateColumns(NO_COLUMNS, result);
+            return result[0];
+        });
+        names.add("gradient");
+        paths.add(expression -> engine.compile(expression).evaluateGradient(NO_BINDINGS, NO_BINDINGS));
+        CalculatorEngine snapshotEngine = new CalculatorEngine(new ExpressionCache(4096, snapshotOf(inputs)));
+        names.add("snapshot");
+        paths.add(snapshotEngine::evaluate);
+    
+        boolean clean = true;
+        long[] mismatches = new long[paths.size()];
+        for (int p = 0; p < paths.size(); p++) {
+            List<String> samples = new ArrayList<>();
+            for (String input : inputs) {
+                if (differs(input, paths.get(p), maxUlps)) {
+                    mismatches[p]++;
+                    if (samples.size() < MAX_SAMPLES) {
+                        samples.add(describe(shrink(input, paths.get(p), maxUlps), paths.get(p)));
+                    }
+                }
+            }
+            System.out.println(names.get(p) + ": " + mismatches[p] + " mismatches in " + cases + " cases");
+            for (String sample : samples) {
+                System.out.println("  " + sample);
+            }
+            clean &= mismatches[p] == 0;
+        }
+        long unbounded = intervalMisses(inputs, engine);
+        System.out.println("interval: " + unbounded + " results outside their bounds");
+        clean &= unbounded == 0;
+    
+        String time = Instant.now().toString();
+        List<String> lines = new ArrayList<>();
+        lines.add(timing(time, seed, cases, "legacy", 0, expression -> new LegacyEvaluator().evaluate(expression), inputs));
+        for (int p = 0; p < paths.size(); p++) {
+            lines.add(timing(time, seed, cases, names.get(p), mismatches[p], paths.get(p), inputs));
+        }
+        boolean fresh = !Files.exists(results);
+        try (Writer out = Files.newBufferedWriter(results, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (fresh) {
+                out.write("time\tseed\tcases\tpath\tmismatches\topsPerSecond\tbytesPerOp\n");
+            }
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+        System.out.println("Results appended to " + results);
+        return clean;
+    }
+    
+    // Whether the path disagrees with the legacy evaluator on an input
+    private static boolean differs(String input, Evaluation path, long maxUlps) {
+        double expected;
+        double actual;
+        boolean legacyFailed = false;
+        boolean pathFailed = false;
+        try {
+            expected = new LegacyEvaluator().evaluate(input);
+        } catch (RuntimeException e) {
+            expected = Double.NaN;
+            legacyFailed = true;
+        }
+        try {
+            actual = path.evaluate(input);
+        } catch (RuntimeException e) {
+            actual = Double.NaN;
+            pathFailed = true;
+        }
+        if (legacyFailed || pathFailed) {
+            return legacyFailed != pathFailed;
+        }
+        if (maxUlps == 0 && !Double.isNaN(expected)) {
+            return Double.doubleToRawLongBits(expected) != Double.doubleToRawLongBits(actual);
+        }
+        return HistoryReplay.ulpDistance(expected, actual) > maxUlps;
+    }
+    
+    // Drops spans of characters, halving the span length down to one, for
+    // as long as the mismatch persists, so the printed sample is small
+    private static String shrink(String input, Evaluation path, long maxUlps) {
+        int span = Math.max(1, input.length() / 2);
+        while (true) {
+            boolean progress = false;
+            for (int i = 0; i + span <= input.length(); i++) {
+                String shorter = input.substring(0, i) + input.substring(i + span);
+                if (differs(shorter, path, maxUlps)) {
+                    input = shorter;
+                    progress = true;
+                    i--;
+                }
+            }
+            if (!progress) {
+                if (span == 1) {
+                    return input;
+                }
+                span /= 2;
+            }
+        }
+    }
+    
+    private static String describe(String input, Evaluation path) {
+        return "\"" + input + "\": legacy " + outcome(expression -> new LegacyEvaluator().evaluate(expression), input)
+            + ", engine " + outcome(path, input);
+    }
+    
+    private static String outcome(Evaluation path, String input) {
+        try {
+            return Double.toString(path.evaluate(input));
+        } catch (RuntimeException e) {
+            return e.getClass().getSimpleName();
+        }
+    }
+    
+    // Interval bounds of every valid input must hold the legacy result
+    private static long intervalMisses(String[] inputs, CalculatorEngine engine) {
+        double[] bounds = new double[2];
+        long misses = 0;
+        for (String input : inputs) {
+            double expected;
+            CompiledExpression compiled;
+            try {
+                expected = new LegacyEvaluator().evaluate(input);
+                compiled = engine.compile(input);
+            } catch (RuntimeException e) {
+                continue;
+            }
+            compiled.evaluateInterval(NO_BINDINGS, NO_BINDINGS, bounds);
+            if (!Double.isNaN(expected) && !(expected >= bounds[0] && expected <= bounds[1])) {
+                if (misses++ < MAX_SAMPLES) {
+                    System.out.println("  \"" + input + "\": " + expected + " outside [" + bounds[0] + ", " + bounds[1] + "]");
+                }
+            }
+        }
+        return misses;
+    }
+    
+    // Every input that compiles, saved and reopened as a snapshot
+    private static FormulaSnapshot snapshotOf(String[] inputs) throws IOException {
+        CalculatorEngine engine = new CalculatorEngine();
+        List<CompiledExpression> programs = new ArrayList<>();
+        for (String input : inputs) {
+            try {
+                programs.add(engine.compile(input));
+            } catch (RuntimeException e) {
+                // Invalid inputs are compiled, and rejected, on lookup
+            }
+        }
+        Path file = Files.createTempFile("fuzz", ".snap");
+        try {
+            FormulaSnapshot.write(file, programs);
+            return FormulaSnapshot.open(file);
+        } finally {
+            // The mapping stays readable once the file is gone
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    // Best of a few passes over all inputs, after one to warm up
+    private static String timing(String time, long seed, int cases, String name, long mismatches,
+                                 Evaluation path, String[] inputs) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocation = threads instanceof com.sun.management.ThreadMXBean
+            ? (com.sun.management.ThreadMXBean) threads : null;
+        long thread = Thread.currentThread().getId();
+        double total = 0;
+        long bestNanos = Long.MAX_VALUE;
+        long bytes = -1;
+        for (int pass = 0; pass <= TIMED_PASSES; pass++) {
+            long allocatedBefore = allocation == null ? 0 : allocation.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (String input : inputs) {
+                try {
+                    total += path.evaluate(input);
+                } catch (RuntimeException e) {
+                    total++;
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            if (pass > 0 && nanos < bestNanos) {
+                bestNanos = nanos;
+                if (allocation != null) {
+                    bytes = allocation.getThreadAllocatedBytes(thread) - allocatedBefore;
+                }
+            }
+        }
+        sink = total;
+        double opsPerSecond = cases * 1e9 / bestNanos;
+        double bytesPerOp = bytes < 0 ? -1 : (double) bytes / cases;
+        System.out.printf("%-9s %,12.0f ops/s %10.1f B/op%n", name, opsPerSecond, bytesPerOp);
+        return time + "\t" + seed + "\t" + cases + "\t" + name + "\t" + mismatches
+            + "\t" + Math.round(opsPerSecond) + "\t" + String.format("%.1f", bytesPerOp);
+    }
+}
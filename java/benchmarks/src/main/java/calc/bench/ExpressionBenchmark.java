@@ -0,0 +1,117 @@
+package calc.bench;
+
+import calc.engine.CalculatorEngine;
+import calc.engine.CompiledExpression;
+import calc.engine.EngineMetrics;
+import calc.engine.ExpressionCache;
+import calc.engine.ExpressionDisplay;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parse and evaluation cost of single expressions. Run with {@code -prof gc}
+ * to see allocation per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExpressionBenchmark {
+    
+    @Param({"short", "nested", "deep", "tape"})
+    public String shape;
+    
+    private final CalculatorEngine engine = new CalculatorEngine();
+    private final CalculatorEngine cachedEngine = new CalculatorEngine(new ExpressionCache(1024));
+    private final CalculatorEngine instrumentedEngine =
+        new CalculatorEngine(new ExpressionCache(1024), new EngineMetrics());
+    private final CalculatorEngine disabledEngine =
+        new CalculatorEngine(new ExpressionCache(1024), disabledMetrics());
+    private String expression;
+    private CompiledExpression compiled;
+    
+    @Setup
+    public void setUp() {
+        switch (shape) {
+            case "nested":
+                expression = Expressions.nested(200);
+                break;
+            case "deep":
+                // Far deeper than the old recursive parser could go
+                expression = Expressions.nested(20000);
+                break;
+            case "tape":
+                expression = Expressions.tape(500);
+                break;
+            default:
+                expression = Expressions.SHORT;
+        }
+        compiled = engine.compile(expression);
+    }
+    
+    private static EngineMetrics disabledMetrics() {
+        EngineMetrics metrics = new EngineMetrics();
+        metrics.setEnabled(false);
+        return metrics;
+    }
+    
+    @Benchmark
+    public double parseAndEvaluate() {
+        return engine.evaluate(expression);
+    }
+    
+    @Benchmark
+    public CompiledExpression compile() {
+        return engine.compile(expression);
+    }
+    
+    @Benchmark
+    public double evaluateCompiled() {
+        return compiled.evaluate();
+    }
+    
+    @Benchmark
+    public double evaluateCached() {
+        return cachedEngine.evaluate(expression);
+    }
+    
+    @Benchmark
+    public double evaluateInstrumented() {
+        return instrumentedEngine.evaluate(expression);
+    }
+    
+    @Benchmark
+    public double evaluateMetricsDisabled() {
+        return disabledEngine.evaluate(expression);
+    }
+    
+    @Benchmark
+    public String formatExpression() {
+        return ExpressionDisplay.format(expression);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public double parseAndEvaluateThreaded() {
+        return engine.evaluate(expression);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public double evaluateCompiledThreaded() {
+        return compiled.evaluate();
+    }
+}
@@ -0,0 +1,175 @@
+package calc.bench;
+
+import java.util.Random;
+
+// Generates expressions in the grammar the legacy evaluator accepts, with a
+// share of adversarial ones: unary sign chains, long left-associative
+// chains, division by zero, literals that round awkwardly or overflow, odd
+// whitespace, unbalanced parentheses and stray characters. The same seed
+// always gives the same sequence.
+final class ExpressionFuzzer {
+    // Inputs either side must reject or treat the same way: malformed
+    // numbers, empty groups, trailing operands and missing parentheses
+    private static final String[] EDGE_CASES = {
+        "", " ", "(", ")", "()", "+", "-", ".", "..", "1..2", "1.2.3", "1.", ".5", "1+", "1 2",
+        "(1+2", "1+2)", "2*(3", "5)", "--+-5", "7 -- 2", "+-+-+1", "1/0", "-1/0", "0/0", "1/-0",
+        "-0", "0*-1", "-0+0", "-0-0", "1/(2-2)", "1/(-(2-2))", "8/4/2", "2-3-4", "2*3/4*5",
+        "1e5", "1E5", "1 . 2", "1 .2", "1. 2", "1\t+\n2", "  12  ", "1 2", "٣+1",
+        "9007199254740993", "0.1+0.2", "179769313486231570000000000000000000000000000000"
+            + "0000000000000000000000000000000000000000000000000000000000000000000000000000000000"
+            + "0000000000000000000000000000000000000000000000000000000000000000000000000000000000"
+            + "0000000000000000000000000000000000000000000000000000000000000000000000000000000000"
+            + "00000000000000000000000000000000000000000000000000000000*10",
+        "0.000000000000000000000000000000000000000000000000000000000000000000000000000000000"
+            + "00000000000000000000000000000000000000000000000000000000000000000000000000000000"
+            + "00000000000000000000000000000000000000000000000000000000000000000000000000000000"
+            + "00000000000000000000000000000000000000000000000000000000000000000000000000000049"
+    };
+    private static final String OPERATORS = "+-*/";
+    // Characters spliced into expressions; none of them are part of the
+    // legacy grammar
+    private static final String STRAY = "x%^,=eé٣ _";
+    private static final String WHITESPACE = "  \t\n\r";
+    private static final int MAX_DEPTH = 8;
+    
+    private final Random random;
+    private int edgeCase;
+    
+    ExpressionFuzzer(long seed) {
+        random = new Random(seed);
+    }
+    
+    String next() {
+        if (edgeCase < EDGE_CASES.length) {
+            return EDGE_CASES[edgeCase++];
+        }
+        String expression;
+        switch (random.nextInt(10)) {
+            case 0:
+                expression = chain();
+                break;
+            case 1:
+                expression = unaryChain() + operand(0);
+                break;
+            case 2:
+                expression = operand(0) + " / " + zero();
+                break;
+            default:
+                expression = operand(0);
+        }
+        return random.nextInt(8) == 0 ? mutate(expression) : expression;
+    }
+    
+    private String operand(int depth) {
+        if (depth >= MAX_DEPTH || random.nextInt(3) == 0) {
+            return number();
+        }
+        switch (random.nextInt(6)) {
+            case 0:
+                return "(" + operand(depth + 1) + ")";
+            case 1:
+                return unaryChain() + operand(depth + 1);
+            case 2:
+                return operand(depth + 1) + space() + operator() + space() + operand(depth + 1);
+            default:
+                return operand(depth + 1) + operator() + operand(depth + 1);
+        }
+    }
+    
+    // "1 - 2 - 3 ..." and the like, where association order changes the result
+    private String chain() {
+        StringBuilder sb = new StringBuilder(number());
+        int terms = 2 + random.nextInt(60);
+        char operator = operator();
+        for (int i = 0; i < terms; i++) {
+            sb.append(random.nextInt(4) == 0 ? operator() : operator).append(number());
+        }
+        return sb.toString();
+    }
+    
+    private String unaryChain() {
+        StringBuilder sb = new StringBuilder();
+        int length = 1 + random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            sb.append(random.nextBoolean() ? '-' : '+').append(random.nextInt(4) == 0 ? " " : "");
+        }
+        return sb.toString();
+    }
+    
+    private String zero() {
+        switch (random.nextInt(4)) {
+            case 0:
+                return "0";
+            case 1:
+                return "-0";
+            case 2:
+                return "(" + number() + " - " + number() + ")";
+            default:
+                return "0.0";
+        }
+    }
+    
+    private String number() {
+        switch (random.nextInt(10)) {
+            case 0:
+                return Integer.toString(random.nextInt(10));
+            case 1:
+                return "." + random.nextInt(1000);
+            case 2:
+                return random.nextInt(100) + ".";
+            case 3:
+                // Past 2^53, where not every integer is a double
+                return Long.toString(random.nextLong() & Long.MAX_VALUE);
+            case 4:
+                return digits(17 + random.nextInt(30)) + "." + digits(1 + random.nextInt(30));
+            case 5:
+                return "0." + zeros(random.nextInt(320)) + digits(1 + random.nextInt(20));
+            case 6:
+                return digits(300 + random.nextInt(20));
+            case 7:
+                return "0";
+            default:
+                return random.nextInt(1000) + "." + random.nextInt(1000);
+        }
+    }
+    
+    private String digits(int count) {
+        StringBuilder sb = new StringBuilder(count);
+        sb.append((char) ('1' + random.nextInt(9)));
+        for (int i = 1; i < count; i++) {
+            sb.append((char) ('0' + random.nextInt(10)));
+        }
+        return sb.toString();
+    }
+    
+    private static String zeros(int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append('0');
+        }
+        return sb.toString();
+    }
+    
+    private char operator() {
+        return OPERATORS.charAt(random.nextInt(OPERATORS.length()));
+    }
+    
+    private String space() {
+        return random.nextInt(4) == 0 ? "" : String.valueOf(WHITESPACE.charAt(random.nextInt(WHITESPACE.length())));
+    }
+    
+    // Inserts, deletes or replaces one character
+    private String mutate(String expression) {
+        int at = random.nextInt(expression.length() + 1);
+        String pool = OPERATORS + "().0123456789" + STRAY + WHITESPACE;
+        char c = pool.charAt(random.nextInt(pool.length()));
+        switch (random.nextInt(3)) {
+            case 0:
+                return expression.substring(0, at) + c + expression.substring(at);
+            case 1:
+                return at == expression.length() ? expression : expression.substring(0, at) + expression.substring(at + 1);
+            default:
+                return at == expression.length() ? expression + c : expression.substring(0, at) + c + expression.substring(at + 1);
+        }
+    }
+}
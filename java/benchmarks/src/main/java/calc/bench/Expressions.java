@@ -0,0 +1,35 @@
+package calc.bench;
+
+// Expression shapes shared by the benchmarks
+final class Expressions {
+    static final String SHORT = "12.5 * 4 - 3 / 2";
+    
+    private Expressions() {
+    }
+    
+    // "(((1 + 1) * 2 + 1) * 2 + ...)" nested to the given depth
+    static String nested(int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append('(');
+        }
+        sb.append("1");
+        for (int i = 0; i < depth; i++) {
+            sb.append(i % 2 == 0 ? " + 1.5)" : " * 0.75)");
+        }
+        return sb.toString();
+    }
+    
+    // A long flat tape such as "1+2-3*4/5+..." like the standard tab builds up
+    static String tape(int terms) {
+        StringBuilder sb = new StringBuilder();
+        char[] operators = {'+', '-', '*', '/'};
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) {
+                sb.append(operators[i % operators.length]);
+            }
+            sb.append(i % 97 + 1);
+        }
+        return sb.toString();
+    }
+}
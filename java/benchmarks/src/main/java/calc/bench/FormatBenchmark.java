@@ -0,0 +1,72 @@
+package calc.bench;
+
+import calc.engine.ResultFormat;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Cost of turning results into text, against the JDK's formatting. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormatBenchmark {
+
+    // "results" are values a calculation produces, "integers" whole numbers
+    @Param({"results", "integers"})
+    public String values;
+
+    private static final ResultFormat SIGNIFICANT = new ResultFormat(6);
+
+    private final double[] inputs = new double[1024];
+    private final StringBuilder out = new StringBuilder(64);
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = values.equals("integers")
+                ? random.nextInt(1_000_000)
+                : random.nextDouble() * Math.pow(10, random.nextInt(20) - 10);
+        }
+    }
+
+    private double nextInput() {
+        return inputs[next++ & (inputs.length - 1)];
+    }
+
+    @Benchmark
+    public String doubleToString() {
+        return Double.toString(nextInput());
+    }
+
+    @Benchmark
+    public StringBuilder shortest() {
+        out.setLength(0);
+        return ResultFormat.SHORTEST.format(nextInput(), out);
+    }
+
+    @Benchmark
+    public String stringFormat() {
+        return String.format("%.6g", nextInput());
+    }
+
+    @Benchmark
+    public StringBuilder significant() {
+        out.setLength(0);
+        return SIGNIFICANT.format(nextInput(), out);
+    }
+}
@@ -0,0 +1,93 @@
+package calc.bench;
+
+// The expression evaluator from the original Calculator, before the engine
+// was extracted, kept verbatim as the reference DifferentialFuzz checks the
+// engine against. Do not fix or tidy it: its quirks, such as accepting a
+// missing ')' or throwing NumberFormatException for "1..2", are the
+// behaviour the engine has to keep.
+final class LegacyEvaluator {
+    private int pos = -1;
+    private int ch;
+    private String expr;
+    
+    public double evaluate(String expression) {
+        this.expr = expression;
+        pos = -1;
+        nextChar();
+        double x = parseExpression();
+        if (pos < expr.length()) {
+            throw new RuntimeException("Unexpected character: " + (char)ch);
+        }
+        return x;
+    }
+    
+    private void nextChar() {
+        ch = (++pos < expr.length()) ? expr.charAt(pos) : -1;
+    }
+    
+    private boolean eat(int charToEat) {
+        while (Character.isWhitespace(ch)) {
+            nextChar();
+        }
+        if (ch == charToEat) {
+            nextChar();
+            return true;
+        }
+        return false;
+    }
+    
+    private double parseExpression() {
+        double x = parseTerm();
+        while (true) {
+            if (eat('+')) {
+                x += parseTerm();
+            } else if (eat('-')) {
+                x -= parseTerm();
+            } else {
+                return x;
+            }
+        }
+    }
+    
+    private double parseTerm() {
+        double x = parseFactor();
+        while (true) {
+            if (eat('*')) {
+                x *= parseFactor();
+            } else if (eat('/')) {
+                x /= parseFactor();
+            } else {
+                return x;
+            }
+        }
+    }
+    
+    private double parseFactor() {
+        if (eat('+')) {
+            return parseFactor();
+        }
+        if (eat('-')) {
+            return -parseFactor();
+        }
+        
+        double x;
+        int startPos = this.pos;
+        
+        if (eat('(')) {
+            x = parseExpression();
+            eat(')');
+        } else if (Character.isDigit(ch) || ch == '.') {
+            // Parse numbers
+            StringBuilder sb = new StringBuilder();
+            while (Character.isDigit(ch) || ch == '.') {
+                sb.append((char)ch);
+                nextChar();
+            }
+            x = Double.parseDouble(sb.toString());
+        } else {
+            throw new RuntimeException("Unexpected character: " + (char)ch);
+        }
+        
+        return x;
+    }
+}
@@ -0,0 +1,342 @@
+package calc.cli;
+
+import calc.engine.CalculatorEngine;
+import calc.engine.CompiledExpression;
+import calc.engine.ExpressionCache;
+import calc.engine.NumberLexer;
+import calc.engine.ResultFormat;
+import calc.history.HistoryLog;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Headless pipe mode: evaluates newline-delimited input from stdin or files
+ * and writes one result line per input line to stdout.
+ *
+ * <pre>
+ * java Calculator --stream [FILE...]                  one expression per line
+ * java Calculator --stream --formula EXPR [FILE...]   CSV rows with a header
+ * java Calculator --stream --history LOG [...]        also append results to a history log
+ * </pre>
+ *
+ * <p>In CSV mode the header names the columns, which become the formula's
+ * variables, and each following row is evaluated with its values bound to
+ * them. Lines that fail produce {@code ERROR: message} so output lines stay
+ * aligned with input lines. A formula that does not compile against the
+ * header stops the run with exit status 2, since no row could succeed.
+ * Input and output go through fixed-size NIO buffers, so memory use does
+ * not depend on the input size.
+ */
+public final class StreamEvaluator {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String USAGE =
+        "Usage: java Calculator --stream [--formula EXPRESSION] [--history LOG] [FILE...]";
+    
+    private final CalculatorEngine engine = new CalculatorEngine(new ExpressionCache(4096));
+    private final NumberLexer numbers = new NumberLexer();
+    private final String formula;
+    private final Output output;
+    
+    // CSV mode state, set up from the header line
+    private CompiledExpression compiledFormula;
+    private String[] columns;
+    private double[] bindings;
+    
+    // Successful results are appended here when a history log is given
+    private HistoryLog history;
+    
+    private long errorCount;
+    
+    // The formula cannot be evaluated against the header, so no row can be
+    private static final class HeaderException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+        
+        HeaderException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+    
+    StreamEvaluator(String formula, WritableByteChannel out) {
+        this.formula = formula;
+        this.output = new Output(out);
+    }
+    
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+    
+    /** Runs the pipe mode with the given arguments and returns the exit status. */
+    public static int run(String[] args) {
+        String formula = null;
+        String historyFile = null;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--stream")) {
+                continue;
+            } else if (arg.equals("--formula") && i + 1 < args.length) {
+                formula = args[++i];
+            } else if (arg.equals("--history") && i + 1 < args.length) {
+                historyFile = args[++i];
+            } else if (arg.startsWith("--")) {
+                System.err.println(USAGE);
+                return 2;
+            } else {
+                files.add(arg);
+            }
+        }
+        if (files.isEmpty()) {
+            files.add("-");
+        }
+        
+        PrintStream err = System.err;
+        try (FileChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel();
+             HistoryLog history = historyFile == null ? null : HistoryLog.open(Paths.get(historyFile), 1000)) {
+            StreamEvaluator evaluator = new StreamEvaluator(formula, stdout);
+            evaluator.history = history;
+            for (String file : files) {
+                if (file.equals("-")) {
+                    evaluator.process(new FileInputStream(FileDescriptor.in).getChannel());
+                } else {
+                    try (FileChannel in = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+                        evaluator.process(in);
+                    }
+                }
+            }
+            evaluator.output.flush();
+            return 0;
+        } catch (HeaderException e) {
+            err.println("Error: " + e.getMessage());
+            return 2;
+        } catch (IOException | IllegalArgumentException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+    
+    long errorCount() {
+        return errorCount;
+    }
+    
+    /** Evaluates every line of one input; CSV input starts with its own header. */
+    void process(ReadableByteChannel in) throws IOException {
+        compiledFormula = null;
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        StringBuilder line = new StringBuilder();
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            endOfInput = in.read(bytes) < 0;
+            bytes.flip();
+            decoder.decode(bytes, chars, endOfInput);
+            if (endOfInput) {
+                decoder.flush(chars);
+            }
+            bytes.compact();
+            chars.flip();
+            while (chars.hasRemaining()) {
+                char c = chars.get();
+                if (c == '\n') {
+                    processLine(line);
+                    line.setLength(0);
+                } else {
+                    line.append(c);
+                }
+            }
+            chars.clear();
+        }
+        if (line.length() > 0) {
+            processLine(line);
+        }
+        output.flush();
+    }
+    
+    private void processLine(StringBuilder line) throws IOException {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(--length);
+        }
+        if (formula != null && compiledFormula == null) {
+            readHeader(line);
+            return;
+        }
+        try {
+            if (formula == null) {
+                if (isBlank(line)) {
+                    output.newLine();
+                    return;
+                }
+                double value = engine.evaluate(line.toString());
+                if (history != null) {
+                    history.append(line, null, null, value, System.currentTimeMillis());
+                }
+                output.append(value);
+            } else {
+                readRow(line);
+                double value = compiledFormula.evaluate(bindings);
+                if (history != null) {
+                    history.append(formula, columns, bindings, value, System.currentTimeMillis());
+                }
+                output.append(value);
+            }
+        } catch (RuntimeException e) {
+            errorCount++;
+            output.append("ERROR: ").append(String.valueOf(e.getMessage()));
+        }
+        output.newLine();
+    }
+    
+    private void readHeader(CharSequence line) throws IOException {
+        columns = line.toString().split(",", -1);
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = columns[i].trim();
+        }
+        try {
+            compiledFormula = engine.compile(formula, columns);
+        } catch (RuntimeException e) {
+            // Results of earlier inputs still go out
+            output.flush();
+            throw new HeaderException("Formula '" + formula + "' does not compile against columns "
+                + String.join(", ", columns) + ": " + e.getMessage(), e);
+        }
+        bindings = new double[columns.length];
+    }
+    
+    // Parses the comma-separated fields of a row straight into the bindings
+    private void readRow(CharSequence line) {
+        int length = line.length();
+        int column = 0;
+        int pos = 0;
+        while (true) {
+            if (column == bindings.length) {
+                throw new IllegalArgumentException("Expected " + bindings.length + " columns");
+            }
+            pos = skipSpaces(line, pos);
+            pos = readNumber(line, pos, column);
+            pos = skipSpaces(line, pos);
+            column++;
+            if (pos == length) {
+                break;
+            }
+            if (line.charAt(pos) != ',') {
+                throw new IllegalArgumentException("Bad value in column " + column);
+            }
+            pos++;
+        }
+        if (column != bindings.length) {
+            throw new IllegalArgumentException("Expected " + bindings.length
+                + " columns but found " + column);
+        }
+    }
+    
+    private int readNumber(CharSequence line, int start, int column) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < line.length() && (line.charAt(pos) == '-' || line.charAt(pos) == '+')) {
+            negative = line.charAt(pos) == '-';
+            pos++;
+        }
+        if (pos == line.length() || !NumberLexer.isNumberStart(line.charAt(pos))) {
+            throw new IllegalArgumentException("Bad value in column " + (column + 1));
+        }
+        pos = numbers.scan(line, pos);
+        double value = numbers.value();
+        if (pos < line.length() && (line.charAt(pos) == 'e' || line.charAt(pos) == 'E')) {
+            // Exponents are rare in practice; let the JDK parse those
+            int end = pos + 1;
+            while (end < line.length() && line.charAt(end) != ',' && line.charAt(end) != ' ') {
+                end++;
+            }
+            value = Double.parseDouble(line.subSequence(negative ? start + 1 : start, end).toString());
+            pos = end;
+        }
+        bindings[column] = negative ? -value : value;
+        return pos;
+    }
+    
+    private static int skipSpaces(CharSequence line, int pos) {
+        while (pos < line.length() && (line.charAt(pos) == ' ' || line.charAt(pos) == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+    
+    private static boolean isBlank(CharSequence line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (!Character.isWhitespace(line.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Collects output text and encodes it to the channel in large batches
+    private static final class Output {
+        private static final int FLUSH_THRESHOLD = BUFFER_SIZE / 2;
+        
+        private final WritableByteChannel channel;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final StringBuilder text = new StringBuilder(BUFFER_SIZE);
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        
+        Output(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+        
+        Output append(String value) {
+            text.append(value);
+            return this;
+        }
+        
+        Output append(double value) {
+            ResultFormat.SHORTEST.format(value, text);
+            return this;
+        }
+        
+        void newLine() throws IOException {
+            text.append('\n');
+            if (text.length() >= FLUSH_THRESHOLD) {
+                flush();
+            }
+        }
+        
+        void flush() throws IOException {
+            CharBuffer chars = CharBuffer.wrap(text);
+            encoder.reset();
+            boolean done = false;
+            while (!done) {
+                done = !encoder.encode(chars, bytes, true).isOverflow();
+                if (done) {
+                    encoder.flush(bytes);
+                }
+                bytes.flip();
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                bytes.clear();
+            }
+            text.setLength(0);
+        }
+    }
+}
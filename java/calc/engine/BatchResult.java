@@ -0,0 +1,46 @@
+package calc.engine;
+
+/**
+ * Results of evaluating a batch of expressions, in input order. A failed
+ * expression has no value; its error is kept instead and does not affect
+ * the rest of the batch.
+ */
+public final class BatchResult {
+    private final double[] values;
+    private final RuntimeException[] errors;
+    private final int errorCount;
+    
+    BatchResult(double[] values, RuntimeException[] errors) {
+        this.values = values;
+        this.errors = errors;
+        int count = 0;
+        for (RuntimeException error : errors) {
+            if (error != null) {
+                count++;
+            }
+        }
+        this.errorCount = count;
+    }
+    
+    public int size() {
+        return values.length;
+    }
+    
+    public int errorCount() {
+        return errorCount;
+    }
+    
+    public boolean isError(int index) {
+        return errors[index] != null;
+    }
+    
+    /** Value of the expression at {@code index}, or NaN if it failed. */
+    public double getValue(int index) {
+        return values[index];
+    }
+    
+    /** Error raised by the expression at {@code index}, or null if it succeeded. */
+    public RuntimeException getError(int index) {
+        return errors[index];
+    }
+}
@@ -0,0 +1,49 @@
+package calc.engine;
+
+import java.util.concurrent.RecursiveAction;
+
+// Splits a range of expressions in half until it is small enough to
+// evaluate sequentially. Each leaf writes only its own slice of the result
+// arrays, and parsing state is per expression, so workers share nothing
+// beyond the engine's thread-safe cache.
+final class BatchTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    // Large enough to amortize task overhead, small enough for work stealing
+    static final int THRESHOLD = 512;
+    
+    private final CalculatorEngine engine;
+    private final String[] expressions;
+    private final double[] values;
+    private final RuntimeException[] errors;
+    private final int from;
+    private final int to;
+    
+    BatchTask(CalculatorEngine engine, String[] expressions, double[] values,
+              RuntimeException[] errors, int from, int to) {
+        this.engine = engine;
+        this.expressions = expressions;
+        this.values = values;
+        this.errors = errors;
+        this.from = from;
+        this.to = to;
+    }
+    
+    @Override
+    protected void compute() {
+        if (to - from <= THRESHOLD) {
+            for (int i = from; i < to; i++) {
+                try {
+                    values[i] = engine.evaluate(expressions[i]);
+                } catch (RuntimeException e) {
+                    values[i] = Double.NaN;
+                    errors[i] = e;
+                }
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        invokeAll(new BatchTask(engine, expressions, values, errors, from, middle),
+                  new BatchTask(engine, expressions, values, errors, middle, to));
+    }
+}
@@ -0,0 +1,234 @@
+package calc.engine;
+
+import java.util.Locale;
+
+/**
+ * Running calculation entered one operand and operator at a time, as on the
+ * standard tab. Instead of re-parsing the whole accumulated expression, the
+ * tape keeps the partial result of everything entered so far and updates it
+ * in constant time per entry, honouring the usual precedence of {@code *}
+ * and {@code /} over {@code +} and {@code -}. The result is the same as
+ * evaluating the concatenated expression with {@link CalculatorEngine}.
+ *
+ * <p>{@link #complete()} replaces the tape by its result, a live
+ * accumulator that further operators continue from and that a repeated
+ * "=" updates with {@link #repeat()}. Percentages and the memory register
+ * work on the same values, so no step goes back through text.
+ *
+ * <p>The formatted expression is kept in an append-only buffer, next to
+ * one the parser reads back, for the history log. Not thread-safe; a tape
+ * belongs to one input session.
+ */
+public final class CalculationTape {
+    // Shortest round-trip digits without an exponent, which the parser has no syntax for
+    private static final ResultFormat SOURCE_FORMAT =
+        new ResultFormat(0, ResultFormat.Notation.PLAIN, Locale.ROOT, false);
+    
+    private final StringBuilder display = new StringBuilder();
+    // The same calculation with operands as plain decimals and ASCII operators
+    private final StringBuilder source = new StringBuilder();
+    private boolean finite = true;
+    
+    // Value of the completed additive terms, the operator joining them to
+    // the current multiplicative term, and that term's value so far
+    private double sum;
+    private char sumOperator;
+    private double term;
+    private boolean empty = true;
+    
+    // Operator waiting for the next operand, and where its symbol starts in
+    // the display so it can be replaced
+    private char pendingOperator;
+    private int pendingMark;
+    private int pendingSourceMark;
+    
+    // Last operator and operand pushed, applied again by repeat()
+    private char lastOperator;
+    private double lastOperand;
+    private final StringBuilder lastText = new StringBuilder();
+    private boolean complete;
+    
+    private double memory;
+    
+    public boolean isEmpty() {
+        return empty;
+    }
+    
+    /** The operator waiting for an operand, or 0 if there is none. */
+    public char pendingOperator() {
+        return pendingOperator;
+    }
+    
+    /**
+     * Adds an operand, combining it with the pending operator. Only the
+     * first operand may be pushed without an operator before it.
+     *
+     * @param text how the operand is shown in the display
+     */
+    public void push(double operand, CharSequence text) {
+        if (empty) {
+            term = operand;
+            empty = false;
+        } else {
+            switch (pendingOperator) {
+                case '*':
+                    term = term * operand;
+                    break;
+                case '/':
+                    term = term / operand;
+                    break;
+                case '+':
+                case '-':
+                    sum = sumOperator == 0 ? term : combine(sum, sumOperator, term);
+                    sumOperator = pendingOperator;
+                    term = operand;
+                    break;
+                default:
+                    throw new IllegalStateException("No operator before operand " + text);
+            }
+            lastOperator = pendingOperator;
+            lastOperand = operand;
+            if (text != lastText) {
+                lastText.setLength(0);
+                lastText.append(text);
+            }
+        }
+        pendingOperator = 0;
+        complete = false;
+        display.append(text);
+        finite &= Double.isFinite(operand);
+        SOURCE_FORMAT.format(operand, source);
+    }
+    
+    /** Sets the operator for the next operand, replacing one already pending. */
+    public void setOperator(char operator) {
+        if (ExpressionDisplay.symbolFor(String.valueOf(operator)) == null) {
+            throw new IllegalArgumentException("Unknown operator: " + operator);
+        }
+        if (empty) {
+            throw new IllegalStateException("Operator " + operator + " has no operand before it");
+        }
+        if (pendingOperator != 0) {
+            display.setLength(pendingMark);
+            source.setLength(pendingSourceMark);
+        }
+        pendingOperator = operator;
+        pendingMark = display.length();
+        pendingSourceMark = source.length();
+        complete = false;
+        display.append(' ').append(ExpressionDisplay.symbolFor(String.valueOf(operator))).append(' ');
+        source.append(' ').append(operator).append(' ');
+    }
+    
+    /** Value of the operands pushed so far, ignoring any pending operator. */
+    public double result() {
+        return sumOperator == 0 ? term : combine(sum, sumOperator, term);
+    }
+    
+    /**
+     * Finishes the calculation, as "=" does, and returns its result. The
+     * tape then holds just that result, shown in the display.
+     */
+    public double complete() {
+        double result = result();
+        display.setLength(0);
+        ResultFormat.SHORTEST.format(result, display);
+        source.setLength(0);
+        SOURCE_FORMAT.format(result, source);
+        finite = Double.isFinite(result);
+        sum = 0;
+        sumOperator = 0;
+        term = result;
+        empty = false;
+        pendingOperator = 0;
+        complete = true;
+        return result;
+    }
+    
+    /** Whether the tape holds a finished result and nothing has been added since. */
+    public boolean isComplete() {
+        return complete;
+    }
+    
+    /**
+     * Applies the last operator and operand to a finished result again, so
+     * {@code 2 + 3 = =} gives 8. Call {@link #complete()} afterwards.
+     *
+     * @return false if the tape is not complete or there is nothing to repeat
+     */
+    public boolean repeat() {
+        if (!complete || lastOperator == 0) {
+            return false;
+        }
+        setOperator(lastOperator);
+        push(lastOperand, lastText);
+        return true;
+    }
+    
+    /**
+     * Value of {@code operand} percent: of the result before the pending
+     * operator, as in {@code 200 + 10%}, or of one when none is pending.
+     */
+    public double percent(double operand) {
+        double percentage = operand / 100;
+        return pendingOperator != 0 ? result() * percentage : percentage;
+    }
+    
+    /** Adds a value to the memory register, as M+ does. */
+    public void addToMemory(double value) {
+        memory += value;
+    }
+    
+    /** Subtracts a value from the memory register, as M- does. */
+    public void subtractFromMemory(double value) {
+        memory -= value;
+    }
+    
+    public double recallMemory() {
+        return memory;
+    }
+    
+    public void clearMemory() {
+        memory = 0;
+    }
+    
+    /** The formatted expression, e.g. {@code "12 × 3 + 4"}. */
+    public CharSequence display() {
+        return display;
+    }
+    
+    /**
+     * The operands pushed so far as an expression {@link CalculatorEngine}
+     * evaluates to {@link #result()}, with every operand written out in
+     * plain decimal digits, e.g. {@code "10000000000.0 * 3.0"}. Returns null
+     * when an operand is infinite or NaN, which the parser has no literal for.
+     */
+    public String expression() {
+        if (!finite || empty) {
+            return null;
+        }
+        return source.substring(0, pendingOperator != 0 ? pendingSourceMark : source.length());
+    }
+    
+    /** Clears the calculation; the memory register is kept. */
+    public void clear() {
+        display.setLength(0);
+        source.setLength(0);
+        finite = true;
+        pendingSourceMark = 0;
+        sum = 0;
+        sumOperator = 0;
+        term = 0;
+        empty = true;
+        pendingOperator = 0;
+        pendingMark = 0;
+        lastOperator = 0;
+        lastOperand = 0;
+        lastText.setLength(0);
+        complete = false;
+    }
+    
+    private static double combine(double left, char operator, double right) {
+        return operator == '+' ? left + right : left - right;
+    }
+}
@@ -0,0 +1,169 @@
+package calc.engine;
+
+import calc.units.UnitRegistry;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Headless entry point to the calculator math. Needs no display and is safe
+ * to share between any number of threads; its only state is an optional
+ * {@link ExpressionCache} and optional {@link EngineMetrics}, which are
+ * themselves thread-safe.
+ */
+public final class CalculatorEngine {
+    
+    private final ExpressionCache cache;
+    private final EngineMetrics metrics;
+    
+    public CalculatorEngine() {
+        this(null, null);
+    }
+    
+    /** Creates an engine that looks up compiled expressions in {@code cache} first. */
+    public CalculatorEngine(ExpressionCache cache) {
+        this(cache, null);
+    }
+    
+    /**
+     * Creates an engine that records its activity in {@code metrics}. Either
+     * argument may be null.
+     */
+    public CalculatorEngine(ExpressionCache cache, EngineMetrics metrics) {
+        this.cache = cache;
+        this.metrics = metrics;
+        if (metrics != null) {
+            metrics.track(cache);
+        }
+    }
+    
+    /** The cache used by this engine, or null if it compiles every time. */
+    public ExpressionCache getCache() {
+        return cache;
+    }
+    
+    /** The metrics this engine records into, or null if it is not instrumented. */
+    public EngineMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Parses an expression once into a program that can be evaluated
+     * repeatedly. Each named variable is bound to the slot matching its
+     * position in {@code variables}.
+     */
+    public CompiledExpression compile(String expression, String... variables) {
+        EngineMetrics metrics = this.metrics;
+        if (metrics == null || !metrics.isEnabled()) {
+            return lookup(expression, variables);
+        }
+        long start = System.nanoTime();
+        try {
+            CompiledExpression compiled = lookup(expression, variables);
+            metrics.recordCompile(expression.length(), System.nanoTime() - start);
+            return compiled;
+        } catch (RuntimeException e) {
+            metrics.recordError(e);
+            throw e;
+        }
+    }
+    
+    private CompiledExpression lookup(String expression, String... variables) {
+        if (cache != null) {
+            return cache.get(expression, variables);
+        }
+        return ExpressionParser.compile(expression, variables);
+    }
+    
+    public double evaluate(String expression) {
+        CompiledExpression compiled = compile(expression);
+        EngineMetrics metrics = this.metrics;
+        if (metrics == null || !metrics.isEnabled()) {
+            return compiled.evaluate();
+        }
+        long start = System.nanoTime();
+        double value = compiled.evaluate();
+        metrics.recordEvaluate(System.nanoTime() - start);
+        return value;
+    }
+    
+    /**
+     * Compiles an expression for exact decimal evaluation. Division and the
+     * final result are rounded to {@code mathContext}; everything else is exact.
+     */
+    public DecimalExpression compileDecimal(String expression, MathContext mathContext, String... variables) {
+        EngineMetrics metrics = this.metrics;
+        if (metrics == null || !metrics.isEnabled()) {
+            return ExpressionParser.compileDecimal(expression, mathContext, variables);
+        }
+        long start = System.nanoTime();
+        try {
+            DecimalExpression compiled = ExpressionParser.compileDecimal(expression, mathContext, variables);
+            metrics.recordCompile(expression.length(), System.nanoTime() - start);
+            return compiled;
+        } catch (RuntimeException e) {
+            metrics.recordError(e);
+            throw e;
+        }
+    }
+    
+    public BigDecimal evaluateDecimal(String expression, MathContext mathContext) {
+        DecimalExpression compiled = compileDecimal(expression, mathContext);
+        EngineMetrics metrics = this.metrics;
+        if (metrics == null || !metrics.isEnabled()) {
+            return compiled.evaluate();
+        }
+        long start = System.nanoTime();
+        try {
+            BigDecimal value = compiled.evaluate();
+            metrics.recordEvaluate(System.nanoTime() - start);
+            return value;
+        } catch (RuntimeException e) {
+            metrics.recordError(e);
+            throw e;
+        }
+    }
+    
+    /**
+     * Evaluates independent expressions in parallel on the common fork-join
+     * pool. Results come back in input order and a failing expression is
+     * reported in the result without aborting the batch.
+     */
+    public BatchResult evaluateAll(List<String> expressions) {
+        return evaluateAll(expressions, ForkJoinPool.commonPool());
+    }
+    
+    public BatchResult evaluateAll(List<String> expressions, ForkJoinPool pool) {
+        String[] sources = expressions.toArray(new String[0]);
+        double[] values = new double[sources.length];
+        RuntimeException[] errors = new RuntimeException[sources.length];
+        pool.invoke(new BatchTask(this, sources, values, errors, 0, sources.length));
+        return new BatchResult(values, errors);
+    }
+    
+    public UnitRegistry getUnits() {
+        return UnitRegistry.standard();
+    }
+    
+    /** Converts between two units of the same dimension, by registry id. */
+    public double convert(double value, int fromUnit, int toUnit) {
+        return UnitRegistry.standard().convert(value, fromUnit, toUnit);
+    }
+    
+    public double logarithm(double value, LogBase base) {
+        return base.apply(value);
+    }
+    
+    /** Stores the logarithm of each of {@code values} in {@code results}, which may be the same array. */
+    public void logarithm(double[] values, double[] results, LogBase base) {
+        if (results.length < values.length) {
+            throw new IllegalArgumentException("Expected at least " + values.length
+                + " results but got " + results.length);
+        }
+        if (results != values) {
+            System.arraycopy(values, 0, results, 0, values.length);
+        }
+        base.function().apply(results, 0, values.length);
+    }
+}
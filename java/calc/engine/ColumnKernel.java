@@ -0,0 +1,177 @@
+package calc.engine;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+// Evaluates a compiled program over blocks of rows. Every instruction runs as
+// a simple loop over one block, which the JIT can unroll and auto-vectorize,
+// instead of dispatching the whole program once per row.
+final class ColumnKernel {
+    // Rows per block; small enough that the operand stack stays in cache
+    static final int BLOCK = 512;
+    
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+    
+    private ColumnKernel() {
+    }
+    
+    // Per-thread block buffers, grown to fit the largest program seen
+    private static final class Workspace {
+        double[][] stack = new double[0][];
+        double[][] slots = new double[0][];
+        
+        Workspace fit(int stackSize, int slotCount) {
+            if (stack.length < stackSize) {
+                stack = grow(stack, stackSize);
+            }
+            if (slots.length < slotCount) {
+                slots = grow(slots, slotCount);
+            }
+            return this;
+        }
+        
+        private static double[][] grow(double[][] blocks, int size) {
+            double[][] grown = Arrays.copyOf(blocks, size);
+            for (int i = blocks.length; i < size; i++) {
+                grown[i] = new double[BLOCK];
+            }
+            return grown;
+        }
+    }
+    
+    static void evaluate(CompiledExpression expression, double[][] columns,
+                         double[] results, int from, int to) {
+        int slotCount = expression.variableCount();
+        checkColumns(columns.length, slotCount);
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (columns[slot].length < to) {
+                throw new IllegalArgumentException("Column " + slot + " has "
+                    + columns[slot].length + " rows, expected at least " + to);
+            }
+        }
+        Workspace workspace = WORKSPACE.get().fit(expression.maxStack(), slotCount);
+        for (int start = from; start < to; start += BLOCK) {
+            int n = Math.min(BLOCK, to - start);
+            for (int slot = 0; slot < slotCount; slot++) {
+                System.arraycopy(columns[slot], start, workspace.slots[slot], 0, n);
+            }
+            double[] block = run(expression, workspace, n);
+            System.arraycopy(block, 0, results, start, n);
+        }
+    }
+    
+    static void evaluate(CompiledExpression expression, DoubleBuffer[] columns, DoubleBuffer results) {
+        int slotCount = expression.variableCount();
+        checkColumns(columns.length, slotCount);
+        int rows = results.remaining();
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (columns[slot].remaining() < rows) {
+                throw new IllegalArgumentException("Column " + slot + " has "
+                    + columns[slot].remaining() + " rows, expected at least " + rows);
+            }
+        }
+        // Read and write through duplicates so callers' positions are untouched
+        DoubleBuffer[] inputs = new DoubleBuffer[slotCount];
+        for (int slot = 0; slot < slotCount; slot++) {
+            inputs[slot] = columns[slot].duplicate();
+        }
+        DoubleBuffer output = results.duplicate();
+        Workspace workspace = WORKSPACE.get().fit(expression.maxStack(), slotCount);
+        for (int start = 0; start < rows; start += BLOCK) {
+            int n = Math.min(BLOCK, rows - start);
+            for (int slot = 0; slot < slotCount; slot++) {
+                inputs[slot].get(workspace.slots[slot], 0, n);
+            }
+            output.put(run(expression, workspace, n), 0, n);
+        }
+    }
+    
+    private static void checkColumns(int columnCount, int slotCount) {
+        if (columnCount < slotCount) {
+            throw new IllegalArgumentException("Expected " + slotCount
+                + " columns but got " + columnCount);
+        }
+    }
+    
+    // Runs the program over the first n rows of the loaded slot blocks and
+    // returns the block holding the results
+    private static double[] run(CompiledExpression expression, Workspace workspace, int n) {
+        final int[] code = expression.code();
+        final double[] constants = expression.constants();
+        final double[][] stack = workspace.stack;
+        final double[][] slots = workspace.slots;
+        int sp = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            int word = code[pc];
+            switch (word & CompiledExpression.OPCODE_MASK) {
+                case CompiledExpression.PUSH:
+                    Arrays.fill(stack[++sp], 0, n, constants[word >>> CompiledExpression.OPERAND_SHIFT]);
+                    break;
+                case CompiledExpression.LOAD:
+                    System.arraycopy(slots[word >>> CompiledExpression.OPERAND_SHIFT], 0, stack[++sp], 0, n);
+                    break;
+                case CompiledExpression.ADD:
+                    sp--;
+                    add(stack[sp], stack[sp + 1], n);
+                    break;
+                case CompiledExpression.SUB:
+                    sp--;
+                    subtract(stack[sp], stack[sp + 1], n);
+                    break;
+                case CompiledExpression.MUL:
+                    sp--;
+                    multiply(stack[sp], stack[sp + 1], n);
+                    break;
+                case CompiledExpression.DIV:
+                    sp--;
+                    divide(stack[sp], stack[sp + 1], n);
+                    break;
+                case CompiledExpression.NEG:
+                    negate(stack[sp], n);
+                    break;
+                case CompiledExpression.CALL:
+                    MathFunction function = MathFunction.VALUES[word >>> CompiledExpression.OPERAND_SHIFT];
+                    if (function.arity() == 2) {
+                        sp--;
+                        function.apply(stack[sp], stack[sp + 1], 0, n);
+                    } else {
+                        function.apply(stack[sp], 0, n);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Bad opcode: " + word);
+            }
+        }
+        return stack[0];
+    }
+    
+    private static void add(double[] a, double[] b, int n) {
+        for (int i = 0; i < n; i++) {
+            a[i] = a[i] + b[i];
+        }
+    }
+    
+    private static void subtract(double[] a, double[] b, int n) {
+        for (int i = 0; i < n; i++) {
+            a[i] = a[i] - b[i];
+        }
+    }
+    
+    private static void multiply(double[] a, double[] b, int n) {
+        for (int i = 0; i < n; i++) {
+            a[i] = a[i] * b[i];
+        }
+    }
+    
+    private static void divide(double[] a, double[] b, int n) {
+        for (int i = 0; i < n; i++) {
+            a[i] = a[i] / b[i];
+        }
+    }
+    
+    private static void negate(double[] a, int n) {
+        for (int i = 0; i < n; i++) {
+            a[i] = -a[i];
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package calc.engine;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable postfix program produced by {@link ExpressionParser}. Instances
+ * can be shared freely between threads; each call evaluates against its own
+ * operand stack.
+ */
+public final class CompiledExpression {
+    // Each code word holds an opcode in the low byte and, for PUSH, LOAD and
+    // CALL, a constant index, variable slot or MathFunction ordinal above it
+    static final int PUSH = 0;
+    static final int ADD = 1;
+    static final int SUB = 2;
+    static final int MUL = 3;
+    static final int DIV = 4;
+    static final int NEG = 5;
+    static final int LOAD = 6;
+    static final int CALL = 7;
+    static final int OPCODE_MASK = 0xFF;
+    static final int OPERAND_SHIFT = 8;
+    
+    // Reused operand stack per thread so evaluation does not allocate
+    private static final ThreadLocal<double[]> STACK = ThreadLocal.withInitial(() -> new double[16]);
+    private static final double[] NO_BINDINGS = new double[0];
+    
+    private final String source;
+    private final String[] variables;
+    private final int[] code;
+    private final double[] constants;
+    private final int maxStack;
+    private final int eliminatedNodes;
+    // Built on first use by evaluateGradient
+    private volatile int[] leftOperands;
+    
+    CompiledExpression(String source, String[] variables, int[] code, double[] constants, int maxStack) {
+        this(source, variables, code, constants, maxStack, 0);
+    }
+    
+    CompiledExpression(String source, String[] variables, int[] code, double[] constants,
+                       int maxStack, int eliminatedNodes) {
+        this.source = source;
+        this.variables = variables;
+        this.code = code;
+        this.constants = constants;
+        this.maxStack = maxStack;
+        this.eliminatedNodes = eliminatedNodes;
+    }
+    
+    public String getSource() {
+        return source;
+    }
+    
+    /** Variable names in slot order; slot i is read from {@code bindings[i]}. */
+    public List<String> getVariables() {
+        return Collections.unmodifiableList(Arrays.asList(variables));
+    }
+    
+    /** Returns the binding slot of a variable, or -1 if the expression does not declare it. */
+    public int variableIndex(String name) {
+        for (int slot = 0; slot < variables.length; slot++) {
+            if (variables[slot].equals(name)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+    
+    int variableCount() {
+        return variables.length;
+    }
+    
+    String[] variableNames() {
+        return variables;
+    }
+    
+    int[] code() {
+        return code;
+    }
+    
+    double[] constants() {
+        return constants;
+    }
+    
+    int[] leftOperands() {
+        int[] left = leftOperands;
+        if (left == null) {
+            left = GradientKernel.leftOperands(code);
+            leftOperands = left;
+        }
+        return left;
+    }
+    
+    /** Number of postfix instructions the optimizer removed when compiling. */
+    public int eliminatedNodes() {
+        return eliminatedNodes;
+    }
+    
+    /** Number of operand stack slots {@link #evaluate(double[])} needs. */
+    public int maxStack() {
+        return maxStack;
+    }
+    
+    public double evaluate() {
+        return evaluate(NO_BINDINGS);
+    }
+    
+    /** Evaluates with variable values taken from {@code bindings} by slot. */
+    public double evaluate(double[] bindings) {
+        double[] stack = STACK.get();
+        if (stack.length < maxStack) {
+            stack = new double[maxStack];
+            STACK.set(stack);
+        }
+        return evaluate(bindings, stack);
+    }
+    
+    /** Evaluates using a caller supplied stack of at least {@link #maxStack()} slots. */
+    public double evaluate(double[] bindings, double[] stack) {
+        if (bindings.length < variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length
+                + " bindings but got " + bindings.length);
+        }
+        final int[] code = this.code;
+        int sp = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            int word = code[pc];
+            switch (word & OPCODE_MASK) {
+                case PUSH:
+                    stack[++sp] = constants[word >>> OPERAND_SHIFT];
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp] = stack[sp] + stack[sp + 1];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp] = stack[sp] - stack[sp + 1];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp] = stack[sp] * stack[sp + 1];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp] = stack[sp] / stack[sp + 1];
+                    break;
+                case NEG:
+                    stack[sp] = -stack[sp];
+                    break;
+                case LOAD:
+                    stack[++sp] = bindings[word >>> OPERAND_SHIFT];
+                    break;
+                case CALL:
+                    MathFunction function = MathFunction.VALUES[word >>> OPERAND_SHIFT];
+                    if (function.arity() == 2) {
+                        sp--;
+                        stack[sp] = function.apply(stack[sp], stack[sp + 1]);
+                    } else {
+                        stack[sp] = function.apply(stack[sp]);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Bad opcode: " + word);
+            }
+        }
+        return stack[0];
+    }
+    
+    /**
+     * Evaluates with variable values taken from {@code bindings} and stores
+     * the partial derivative of the result with respect to each variable in
+     * {@code gradient[slot]}. Reverse-mode differentiation gives all of them
+     * in one forward and one backward pass over the program, whatever the
+     * number of variables, and nothing is allocated per call.
+     *
+     * @return the value, exactly as {@link #evaluate(double[])} computes it
+     */
+    public double evaluateGradient(double[] bindings, double[] gradient) {
+        return GradientKernel.evaluate(this, bindings, gradient);
+    }
+
+    /**
+     * Bounds the result while each variable ranges over
+     * {@code [lower[slot], upper[slot]]}, storing the bounds in
+     * {@code bounds[0]} and {@code bounds[1]}. Bounds are rounded outward, so
+     * they hold the exact result and whatever {@link #evaluate(double[])}
+     * returns for every binding in the box. Division by a range containing
+     * zero gives a half-line or the whole line. Bindings where the formula is
+     * undefined are left out, and if that is all of them both bounds are NaN.
+     */
+    public void evaluateInterval(double[] lower, double[] upper, double[] bounds) {
+        IntervalKernel.evaluate(this, lower, upper, bounds);
+    }
+
+    /**
+     * Bounds rows {@code from} (inclusive) to {@code to} (exclusive), where
+     * {@code lowerColumns[slot][row]} and {@code upperColumns[slot][row]} are
+     * the range of the variable in that slot, as {@link #evaluateInterval}
+     * does for one row. Pruning a candidate set takes one pass: rows whose
+     * bounds cannot meet a condition are dropped without evaluating any of
+     * their points.
+     */
+    public void evaluateIntervalColumns(double[][] lowerColumns, double[][] upperColumns,
+                                        double[] resultLower, double[] resultUpper, int from, int to) {
+        if (from < 0 || to > resultLower.length || to > resultUpper.length || from > to) {
+            throw new IndexOutOfBoundsException("Rows " + from + " to " + to + " out of range for "
+                + Math.min(resultLower.length, resultUpper.length) + " results");
+        }
+        IntervalKernel.evaluate(this, lowerColumns, upperColumns, resultLower, resultUpper, from, to);
+    }
+
+    /**
+     * Evaluates rows {@code from} (inclusive) to {@code to} (exclusive) of the
+     * variable columns, where {@code columns[slot][row]} is the value of the
+     * variable in that slot, and stores each row's result in {@code results}.
+     */
+    public void evaluateColumns(double[][] columns, double[] results, int from, int to) {
+        if (from < 0 || to > results.length || from > to) {
+            throw new IndexOutOfBoundsException("Rows " + from + " to " + to
+                + " out of range for " + results.length + " results");
+        }
+        ColumnKernel.evaluate(this, columns, results, from, to);
+    }
+    
+    public void evaluateColumns(double[][] columns, double[] results) {
+        evaluateColumns(columns, results, 0, results.length);
+    }
+    
+    /**
+     * Columnar evaluation over buffers, which may be direct (off-heap). One
+     * row is produced for each remaining slot of {@code results}; rows are
+     * read from each column starting at its position. No buffer positions
+     * are changed.
+     */
+    public void evaluateColumns(DoubleBuffer[] columns, DoubleBuffer results) {
+        ColumnKernel.evaluate(this, columns, results);
+    }
+    
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -0,0 +1,270 @@
+package calc.engine;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Exact decimal evaluation of a compiled expression, for money and other
+ * values that must not pick up binary rounding ({@code 0.1 + 0.2} is
+ * exactly {@code 0.3}).
+ *
+ * <p>Addition, subtraction, multiplication and negation are exact. Division
+ * is rounded to the {@link MathContext}, as is the final result. Division by
+ * zero throws {@link ArithmeticException}. Functions such as {@code sqrt} are
+ * evaluated in double precision; a result with no decimal value, such as
+ * {@code sqrt(-1)}, also throws {@link ArithmeticException}.
+ *
+ * <p>Values are held as an unscaled {@code long} and a decimal scale while
+ * they fit, which needs no allocation per operation. An operation that would
+ * overflow promotes its result to {@link BigDecimal}, and a quotient small
+ * enough to fit is demoted again. Instances are immutable and thread-safe.
+ */
+public final class DecimalExpression {
+    private static final long[] LONG_TEN_POWERS = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+        100000000L, 1000000000L, 10000000000L, 100000000000L,
+        1000000000000L, 10000000000000L, 100000000000000L,
+        1000000000000000L, 10000000000000000L, 100000000000000000L,
+        1000000000000000000L
+    };
+    
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+    
+    // Per-thread operand stack. A slot holds a BigDecimal when big[i] is
+    // set and the unscaled/scale pair otherwise.
+    private static final class Workspace {
+        long[] unscaled = new long[16];
+        int[] scales = new int[16];
+        BigDecimal[] big = new BigDecimal[16];
+        
+        Workspace fit(int size) {
+            if (unscaled.length < size) {
+                unscaled = new long[size];
+                scales = new int[size];
+                big = new BigDecimal[size];
+            }
+            return this;
+        }
+    }
+    
+    private final CompiledExpression program;
+    private final long[] unscaledConstants;
+    private final int[] constantScales;
+    private final BigDecimal[] bigConstants;
+    private final MathContext mathContext;
+    
+    DecimalExpression(CompiledExpression program, long[] unscaledConstants, int[] constantScales,
+                      BigDecimal[] bigConstants, MathContext mathContext) {
+        this.program = program;
+        this.unscaledConstants = unscaledConstants;
+        this.constantScales = constantScales;
+        this.bigConstants = bigConstants;
+        this.mathContext = mathContext;
+    }
+    
+    public String getSource() {
+        return program.getSource();
+    }
+    
+    public List<String> getVariables() {
+        return program.getVariables();
+    }
+    
+    public MathContext getMathContext() {
+        return mathContext;
+    }
+    
+    /** Evaluates with variable values taken from {@code bindings} by slot. */
+    public BigDecimal evaluate(BigDecimal... bindings) {
+        checkBindings(bindings.length);
+        return evaluate(bindings, null, null);
+    }
+    
+    /**
+     * Evaluates with the value of slot i given as {@code unscaled[i] * 10^-scales[i]},
+     * which avoids converting BigDecimal inputs on the common path.
+     */
+    public BigDecimal evaluate(long[] unscaled, int[] scales) {
+        checkBindings(Math.min(unscaled.length, scales.length));
+        return evaluate(null, unscaled, scales);
+    }
+    
+    private void checkBindings(int count) {
+        if (count < program.variableCount()) {
+            throw new IllegalArgumentException("Expected " + program.variableCount()
+                + " bindings but got " + count);
+        }
+    }
+    
+    private BigDecimal evaluate(BigDecimal[] bindings, long[] unscaledBindings, int[] scaleBindings) {
+        Workspace workspace = WORKSPACE.get().fit(program.maxStack());
+        try {
+            return run(workspace, bindings, unscaledBindings, scaleBindings).round(mathContext);
+        } finally {
+            // Do not keep intermediate values reachable from the thread
+            Arrays.fill(workspace.big, 0, program.maxStack(), null);
+        }
+    }
+    
+    private BigDecimal run(Workspace workspace, BigDecimal[] bindings,
+                           long[] unscaledBindings, int[] scaleBindings) {
+        final int[] code = program.code();
+        final long[] unscaled = workspace.unscaled;
+        final int[] scales = workspace.scales;
+        final BigDecimal[] big = workspace.big;
+        int sp = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            int word = code[pc];
+            int operand = word >>> CompiledExpression.OPERAND_SHIFT;
+            switch (word & CompiledExpression.OPCODE_MASK) {
+                case CompiledExpression.PUSH:
+                    sp++;
+                    big[sp] = bigConstants[operand];
+                    unscaled[sp] = unscaledConstants[operand];
+                    scales[sp] = constantScales[operand];
+                    break;
+                case CompiledExpression.LOAD:
+                    sp++;
+                    if (bindings != null) {
+                        store(workspace, sp, bindings[operand]);
+                    } else {
+                        big[sp] = null;
+                        unscaled[sp] = unscaledBindings[operand];
+                        scales[sp] = scaleBindings[operand];
+                    }
+                    break;
+                case CompiledExpression.ADD:
+                    sp--;
+                    if (big[sp] != null || big[sp + 1] != null || !addSmall(workspace, sp, false)) {
+                        big[sp] = toBig(workspace, sp).add(toBig(workspace, sp + 1));
+                    }
+                    break;
+                case CompiledExpression.SUB:
+                    sp--;
+                    if (big[sp] != null || big[sp + 1] != null || !addSmall(workspace, sp, true)) {
+                        big[sp] = toBig(workspace, sp).subtract(toBig(workspace, sp + 1));
+                    }
+                    break;
+                case CompiledExpression.MUL:
+                    sp--;
+                    if (big[sp] != null || big[sp + 1] != null || !multiplySmall(workspace, sp)) {
+                        big[sp] = toBig(workspace, sp).multiply(toBig(workspace, sp + 1));
+                    }
+                    break;
+                case CompiledExpression.DIV:
+                    sp--;
+                    store(workspace, sp, toBig(workspace, sp).divide(toBig(workspace, sp + 1), mathContext));
+                    break;
+                case CompiledExpression.NEG:
+                    if (big[sp] == null && unscaled[sp] != Long.MIN_VALUE) {
+                        unscaled[sp] = -unscaled[sp];
+                    } else {
+                        big[sp] = toBig(workspace, sp).negate();
+                    }
+                    break;
+                case CompiledExpression.CALL:
+                    MathFunction function = MathFunction.VALUES[operand];
+                    double result;
+                    if (function.arity() == 2) {
+                        sp--;
+                        result = function.apply(toBig(workspace, sp).doubleValue(),
+                            toBig(workspace, sp + 1).doubleValue());
+                    } else {
+                        result = function.apply(toBig(workspace, sp).doubleValue());
+                    }
+                    if (Double.isNaN(result) || Double.isInfinite(result)) {
+                        throw new ArithmeticException(function + " gave " + result + ", which has no decimal value");
+                    }
+                    store(workspace, sp, BigDecimal.valueOf(result));
+                    break;
+                default:
+                    throw new IllegalStateException("Bad opcode: " + word);
+            }
+        }
+        return toBig(workspace, 0);
+    }
+    
+    private static BigDecimal toBig(Workspace workspace, int i) {
+        BigDecimal value = workspace.big[i];
+        return value != null ? value : BigDecimal.valueOf(workspace.unscaled[i], workspace.scales[i]);
+    }
+    
+    // Keeps a value in long form when its unscaled digits fit
+    private static void store(Workspace workspace, int i, BigDecimal value) {
+        if (value.precision() <= 18) {
+            workspace.big[i] = null;
+            workspace.unscaled[i] = value.unscaledValue().longValue();
+            workspace.scales[i] = value.scale();
+        } else {
+            workspace.big[i] = value;
+        }
+    }
+    
+    private static boolean addSmall(Workspace workspace, int i, boolean subtract) {
+        long a = workspace.unscaled[i];
+        long b = workspace.unscaled[i + 1];
+        int scaleA = workspace.scales[i];
+        int scaleB = workspace.scales[i + 1];
+        int scale = scaleA;
+        if (scaleA < scaleB) {
+            a = scaleUp(a, scaleB - scaleA);
+            scale = scaleB;
+        } else if (scaleB < scaleA) {
+            b = scaleUp(b, scaleA - scaleB);
+        }
+        if (a == Long.MIN_VALUE || b == Long.MIN_VALUE) {
+            return false;
+        }
+        if (subtract) {
+            b = -b;
+        }
+        long sum = a + b;
+        // Overflow if both operands have the same sign and the sum does not
+        if (((a ^ sum) & (b ^ sum)) < 0) {
+            return false;
+        }
+        workspace.unscaled[i] = sum;
+        workspace.scales[i] = scale;
+        return true;
+    }
+    
+    private static boolean multiplySmall(Workspace workspace, int i) {
+        long a = workspace.unscaled[i];
+        long b = workspace.unscaled[i + 1];
+        long product = a * b;
+        long absA = Math.abs(a);
+        long absB = Math.abs(b);
+        if (((absA | absB) >>> 31) != 0) {
+            // Same check as Math.multiplyExact, without the exception
+            if ((b != 0 && product / b != a) || (a == Long.MIN_VALUE && b == -1)) {
+                return false;
+            }
+        }
+        long scale = (long) workspace.scales[i] + workspace.scales[i + 1];
+        if (scale != (int) scale) {
+            return false;
+        }
+        workspace.unscaled[i] = product;
+        workspace.scales[i] = (int) scale;
+        return true;
+    }
+    
+    // Multiplies by 10^n, or returns Long.MIN_VALUE if that would overflow
+    private static long scaleUp(long value, int n) {
+        if (n >= LONG_TEN_POWERS.length) {
+            return value == 0 ? 0 : Long.MIN_VALUE;
+        }
+        long limit = Long.MAX_VALUE / LONG_TEN_POWERS[n];
+        if (value > limit || value < -limit) {
+            return Long.MIN_VALUE;
+        }
+        return value * LONG_TEN_POWERS[n];
+    }
+    
+    @Override
+    public String toString() {
+        return program.getSource();
+    }
+}
@@ -0,0 +1,183 @@
+package calc.engine;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for a {@link CalculatorEngine}: compile
+ * and evaluate latency, error counts by kind, expression lengths and the
+ * cache hit rate. All counters are striped, so recording from many threads
+ * does not contend.
+ *
+ * <p>An engine created without metrics does no instrumentation at all, and
+ * a disabled instance costs one volatile read per call. Evaluating an
+ * already compiled expression is never instrumented.
+ */
+public final class EngineMetrics implements EngineMetricsMXBean {
+    private volatile boolean enabled = true;
+    private volatile ExpressionCache cache;
+    
+    private final LongAdder compiles = new LongAdder();
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> errorsByKind = new ConcurrentHashMap<>();
+    private final Histogram compileLatency = new Histogram();
+    private final Histogram evaluateLatency = new Histogram();
+    private final Histogram expressionLengths = new Histogram();
+    
+    /**
+     * Registers these metrics with the platform MBean server as
+     * {@code calc:type=EngineMetrics,name=<name>}.
+     *
+     * @throws IllegalStateException if the name is taken or registration fails
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("calc:type=EngineMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metrics " + name, e);
+        }
+    }
+    
+    void track(ExpressionCache cache) {
+        this.cache = cache;
+    }
+    
+    void recordCompile(int length, long nanos) {
+        compiles.increment();
+        compileLatency.record(nanos);
+        expressionLengths.record(length);
+    }
+    
+    void recordEvaluate(long nanos) {
+        evaluations.increment();
+        evaluateLatency.record(nanos);
+    }
+    
+    /** Counts a failed calculation, including ones the caller detected itself. */
+    public void recordError(RuntimeException e) {
+        if (!enabled) {
+            return;
+        }
+        errors.increment();
+        errorsByKind.computeIfAbsent(kind(e), k -> new LongAdder()).increment();
+    }
+    
+    // Expression errors are grouped by the message up to the offending text,
+    // anything else by exception type, so the number of kinds stays small
+    private static String kind(RuntimeException e) {
+        String message = e.getMessage();
+        if (e instanceof ExpressionException && message != null) {
+            int colon = message.indexOf(':');
+            if (colon > 0) {
+                return message.substring(0, colon);
+            }
+        }
+        return e.getClass().getSimpleName();
+    }
+    
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    @Override
+    public long getCompileCount() {
+        return compiles.sum();
+    }
+    
+    @Override
+    public long getEvaluationCount() {
+        return evaluations.sum();
+    }
+    
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+    
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : errorsByKind.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+    
+    @Override
+    public long getCompileLatencyMedian() {
+        return compileLatency.valueAtPercentile(50);
+    }
+    
+    @Override
+    public long getCompileLatency99thPercentile() {
+        return compileLatency.valueAtPercentile(99);
+    }
+    
+    @Override
+    public long getEvaluateLatencyMedian() {
+        return evaluateLatency.valueAtPercentile(50);
+    }
+    
+    @Override
+    public long getEvaluateLatency99thPercentile() {
+        return evaluateLatency.valueAtPercentile(99);
+    }
+    
+    @Override
+    public long getEvaluateLatencyMax() {
+        return evaluateLatency.max();
+    }
+    
+    @Override
+    public double getMeanExpressionLength() {
+        return expressionLengths.mean();
+    }
+    
+    @Override
+    public long getExpressionLength99thPercentile() {
+        return expressionLengths.valueAtPercentile(99);
+    }
+    
+    @Override
+    public double getCacheHitRate() {
+        ExpressionCache cache = this.cache;
+        return cache == null ? -1 : cache.hitRate();
+    }
+    
+    public Histogram getCompileLatency() {
+        return compileLatency;
+    }
+    
+    public Histogram getEvaluateLatency() {
+        return evaluateLatency;
+    }
+    
+    public Histogram getExpressionLengths() {
+        return expressionLengths;
+    }
+    
+    @Override
+    public void reset() {
+        compiles.reset();
+        evaluations.reset();
+        errors.reset();
+        errorsByKind.clear();
+        compileLatency.reset();
+        evaluateLatency.reset();
+        expressionLengths.reset();
+    }
+}
@@ -0,0 +1,38 @@
+package calc.engine;
+
+import java.util.Map;
+
+/** JMX view of {@link EngineMetrics}. Latencies are in nanoseconds. */
+public interface EngineMetricsMXBean {
+    boolean isEnabled();
+    
+    void setEnabled(boolean enabled);
+    
+    long getCompileCount();
+    
+    long getEvaluationCount();
+    
+    long getErrorCount();
+    
+    /** Error counts keyed by kind, such as "Unknown variable" or "ArithmeticException". */
+    Map<String, Long> getErrorCounts();
+    
+    long getCompileLatencyMedian();
+    
+    long getCompileLatency99thPercentile();
+    
+    long getEvaluateLatencyMedian();
+    
+    long getEvaluateLatency99thPercentile();
+    
+    long getEvaluateLatencyMax();
+    
+    double getMeanExpressionLength();
+    
+    long getExpressionLength99thPercentile();
+    
+    /** Hit rate of the engine's expression cache, or -1 if it has none. */
+    double getCacheHitRate();
+    
+    void reset();
+}
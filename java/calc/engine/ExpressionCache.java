@@ -0,0 +1,199 @@
+package calc.engine;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of compiled expressions, keyed by expression text with
+ * insignificant whitespace removed plus the declared variable names.
+ *
+ * <p>Lookups are a single {@link ConcurrentHashMap} read and never lock.
+ * Eviction uses the CLOCK (second chance) approximation of LRU: a hit only
+ * marks its entry as referenced, and when the cache is full a miss sweeps
+ * the ring of entries, clearing marks until it finds an unreferenced victim.
+ * Only inserts take the eviction lock.
+ */
+public final class ExpressionCache {
+    
+    private static final class Entry {
+        final String key;
+        final CompiledExpression expression;
+        // Set on hit without synchronization; a lost update only makes the
+        // entry look colder than it is
+        boolean referenced;
+        
+        Entry(String key, CompiledExpression expression) {
+            this.key = key;
+            this.expression = expression;
+        }
+    }
+    
+    private final int maximumSize;
+    private final FormulaSnapshot snapshot;
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    
+    // Guarded by ring
+    private final Entry[] ring;
+    private int hand;
+    private int filled;
+    
+    public ExpressionCache(int maximumSize) {
+        this(maximumSize, null);
+    }
+    
+    /**
+     * Creates a cache that takes missing programs from {@code snapshot}
+     * before compiling them, so formulas saved there are never parsed.
+     */
+    public ExpressionCache(int maximumSize, FormulaSnapshot snapshot) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        this.snapshot = snapshot;
+        this.entries = new ConcurrentHashMap<>(Math.min(maximumSize, 1 << 16) * 4 / 3 + 1);
+        this.ring = new Entry[maximumSize];
+    }
+    
+    /** Returns the cached program for an expression, compiling it on a miss. */
+    public CompiledExpression get(String expression, String... variables) {
+        String key = key(expression, variables);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            hits.increment();
+            return entry.expression;
+        }
+        misses.increment();
+        // Compile outside the lock; concurrent misses on the same key may
+        // both compile, but only the first result is kept
+        CompiledExpression compiled = snapshot == null ? null : snapshot.lookup(key);
+        if (compiled == null) {
+            compiled = ExpressionParser.compile(expression, variables);
+        }
+        return insert(new Entry(key, compiled));
+    }
+    
+    private CompiledExpression insert(Entry entry) {
+        synchronized (ring) {
+            Entry existing = entries.get(entry.key);
+            if (existing != null) {
+                return existing.expression;
+            }
+            if (filled < maximumSize) {
+                ring[filled++] = entry;
+            } else {
+                while (ring[hand].referenced) {
+                    ring[hand].referenced = false;
+                    hand = (hand + 1) % maximumSize;
+                }
+                entries.remove(ring[hand].key);
+                evictions.increment();
+                ring[hand] = entry;
+                hand = (hand + 1) % maximumSize;
+            }
+            entries.put(entry.key, entry);
+            return entry.expression;
+        }
+    }
+    
+    public void clear() {
+        synchronized (ring) {
+            entries.clear();
+            Arrays.fill(ring, null);
+            hand = 0;
+            filled = 0;
+        }
+    }
+    
+    public int maximumSize() {
+        return maximumSize;
+    }
+    
+    public int size() {
+        return entries.size();
+    }
+    
+    public long hitCount() {
+        return hits.sum();
+    }
+    
+    public long missCount() {
+        return misses.sum();
+    }
+    
+    public long evictionCount() {
+        return evictions.sum();
+    }
+    
+    public double hitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 1.0 : (double) hitCount / total;
+    }
+    
+    @Override
+    public String toString() {
+        return "ExpressionCache[size=" + size() + "/" + maximumSize
+            + ", hits=" + hitCount() + ", misses=" + missCount()
+            + ", evictions=" + evictionCount() + "]";
+    }
+    
+    // Expressions without variables, the common case, are keyed by their
+    // normalized text alone. Any other key starts with '\0', which that text
+    // then never contains, followed by the variable count and each name with
+    // its length, so no two different lookups share a key.
+    static String key(String expression, String[] variables) {
+        String normalized = normalize(expression);
+        if (variables.length == 0 && normalized.indexOf('\u0000') < 0) {
+            return normalized;
+        }
+        StringBuilder key = new StringBuilder(normalized.length() + 16 * variables.length + 4);
+        key.append('\u0000').append(variables.length);
+        for (String variable : variables) {
+            key.append(':').append(variable.length()).append(':').append(variable);
+        }
+        return key.append(':').append(normalized).toString();
+    }
+    
+    // Drops whitespace the parser would skip anyway. A single space is kept
+    // between two word characters, where it ends a number or name and so
+    // changes the meaning ("1 2" is an error, "12" is not).
+    static String normalize(String expression) {
+        int length = expression.length();
+        int i = 0;
+        while (i < length && !Character.isWhitespace(expression.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return expression;
+        }
+        StringBuilder sb = new StringBuilder(length);
+        sb.append(expression, 0, i);
+        boolean pendingSpace = false;
+        for (; i < length; i++) {
+            char c = expression.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+                continue;
+            }
+            if (pendingSpace && sb.length() > 0
+                    && isWordChar(sb.charAt(sb.length() - 1)) && isWordChar(c)) {
+                sb.append(' ');
+            }
+            pendingSpace = false;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+    
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '.' || c == '_';
+    }
+}
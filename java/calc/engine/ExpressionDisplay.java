@@ -0,0 +1,34 @@
+package calc.engine;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Display symbols for operators, as shown on the buttons and expression label. */
+public final class ExpressionDisplay {
+    private static final Map<String, String> SYMBOLS;
+    
+    static {
+        Map<String, String> symbols = new HashMap<>();
+        symbols.put("/", "÷");
+        symbols.put("*", "×");
+        symbols.put("-", "-");
+        symbols.put("+", "+");
+        SYMBOLS = Collections.unmodifiableMap(symbols);
+    }
+    
+    private ExpressionDisplay() {
+    }
+    
+    public static String symbolFor(String operator) {
+        return SYMBOLS.get(operator);
+    }
+    
+    /** Replaces each operator with its display symbol surrounded by spaces. */
+    public static String format(String expression) {
+        for (Map.Entry<String, String> op : SYMBOLS.entrySet()) {
+            expression = expression.replace(op.getKey(), " " + op.getValue() + " ");
+        }
+        return expression;
+    }
+}
@@ -0,0 +1,20 @@
+package calc.engine;
+
+/**
+ * Thrown when an expression cannot be parsed. The position is the index in
+ * the source text where parsing stopped, or -1 if it is not known.
+ */
+public class ExpressionException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    
+    private final int position;
+    
+    public ExpressionException(String message, int position) {
+        super(message);
+        this.position = position;
+    }
+    
+    public int getPosition() {
+        return position;
+    }
+}
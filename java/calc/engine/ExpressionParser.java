@@ -0,0 +1,322 @@
+package calc.engine;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+
+// Front end that compiles an expression into a postfix program. Parsing is
+// iterative, with pending operators on an explicit stack, so nesting depth
+// is bounded by MAX_NESTING rather than by the thread's call stack. Holds
+// per-parse state, so each compile uses a fresh instance.
+final class ExpressionParser {
+    // Limits, adjustable with -Dcalc.parser.maxLength and -Dcalc.parser.maxNesting
+    static final int MAX_LENGTH = Integer.getInteger("calc.parser.maxLength", 1 << 24);
+    static final int MAX_NESTING = Integer.getInteger("calc.parser.maxNesting", 1 << 16);
+    
+    // Operator stack entries besides the binary opcodes and NEG: an open
+    // parenthesis, and a call holding its function ordinal in bits 8-15 and
+    // the number of the argument being read from bit 16
+    private static final int PAREN = 0x10;
+    private static final int CALL = 0x11;
+    private static final int KIND_MASK = 0xFF;
+    
+    private final String expr;
+    private final String[] variables;
+    private final NumberLexer numbers = new NumberLexer();
+    private int pos = -1;
+    private int ch;
+    private int[] operators = new int[16];
+    private int top = -1;
+    private int nesting;
+    
+    private int[] code = new int[16];
+    private int codeLength;
+    private double[] constants = new double[8];
+    private int constantCount;
+    private int depth;
+    private int maxDepth;
+    
+    // Exact literal values, recorded only when compiling for decimal mode
+    private final boolean recordDecimals;
+    private long[] unscaledConstants;
+    private int[] constantScales;
+    private BigDecimal[] bigConstants;
+    
+    private ExpressionParser(String expression, String[] variables, boolean recordDecimals) {
+        this.expr = expression;
+        this.variables = variables;
+        this.recordDecimals = recordDecimals;
+        if (recordDecimals) {
+            unscaledConstants = new long[constants.length];
+            constantScales = new int[constants.length];
+            bigConstants = new BigDecimal[constants.length];
+        }
+    }
+    
+    // Variables are bound by position: the i-th name reads slot i of the
+    // bindings array passed to CompiledExpression.evaluate
+    static CompiledExpression compile(String expression, String... variables) {
+        return ProgramOptimizer.optimize(new ExpressionParser(expression, variables.clone(), false).compile());
+    }
+    
+    // Decimal programs skip the optimizer: folding would round the exact
+    // literals through double
+    static DecimalExpression compileDecimal(String expression, MathContext mathContext, String... variables) {
+        ExpressionParser parser = new ExpressionParser(expression, variables.clone(), true);
+        CompiledExpression program = parser.compile();
+        int count = parser.constantCount;
+        return new DecimalExpression(program,
+            Arrays.copyOf(parser.unscaledConstants, count),
+            Arrays.copyOf(parser.constantScales, count),
+            Arrays.copyOf(parser.bigConstants, count),
+            mathContext);
+    }
+    
+    private CompiledExpression compile() {
+        if (expr.length() > MAX_LENGTH) {
+            throw new ExpressionException("Expression is longer than " + MAX_LENGTH + " characters", MAX_LENGTH);
+        }
+        nextChar();
+        parse();
+        if (pos < expr.length()) {
+            throw unexpected();
+        }
+        return new CompiledExpression(expr, variables,
+            Arrays.copyOf(code, codeLength),
+            Arrays.copyOf(constants, constantCount),
+            maxDepth);
+    }
+    
+    private ExpressionException unexpected() {
+        return new ExpressionException("Unexpected character: " + (char)ch, pos);
+    }
+    
+    private void nextChar() {
+        ch = (++pos < expr.length()) ? expr.charAt(pos) : -1;
+    }
+    
+    private boolean eat(int charToEat) {
+        while (Character.isWhitespace(ch)) {
+            nextChar();
+        }
+        if (ch == charToEat) {
+            nextChar();
+            return true;
+        }
+        return false;
+    }
+    
+    private void emit(int word) {
+        if (codeLength == code.length) {
+            code = Arrays.copyOf(code, codeLength * 2);
+        }
+        code[codeLength++] = word;
+    }
+    
+    // Binary operators pop two operands and push one result
+    private void emitBinary(int op) {
+        emit(op);
+        depth--;
+    }
+    
+    private void emitConstant(double value) {
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        emit(CompiledExpression.PUSH | (constantCount++ << CompiledExpression.OPERAND_SHIFT));
+        maxDepth = Math.max(maxDepth, ++depth);
+    }
+    
+    // Keeps the exact value of the literal about to become the next constant
+    private void recordDecimal(int start) {
+        if (constantCount == unscaledConstants.length) {
+            unscaledConstants = Arrays.copyOf(unscaledConstants, constantCount * 2);
+            constantScales = Arrays.copyOf(constantScales, constantCount * 2);
+            bigConstants = Arrays.copyOf(bigConstants, constantCount * 2);
+        }
+        if (numbers.isLongExact()) {
+            unscaledConstants[constantCount] = numbers.unscaled();
+            constantScales[constantCount] = numbers.scale();
+        } else {
+            bigConstants[constantCount] = new BigDecimal(expr.substring(start, pos));
+        }
+    }
+    
+    private void emitCall(MathFunction function) {
+        emit(CompiledExpression.CALL | (function.ordinal() << CompiledExpression.OPERAND_SHIFT));
+        depth -= function.arity() - 1;
+    }
+    
+    private void emitLoad(int slot) {
+        emit(CompiledExpression.LOAD | (slot << CompiledExpression.OPERAND_SHIFT));
+        maxDepth = Math.max(maxDepth, ++depth);
+    }
+    
+    // Reads any unary signs, opening parentheses and function calls in front
+    // of an operand, then the operand itself
+    private void parseOperand() {
+        while (true) {
+            if (eat('+')) {
+                continue;
+            }
+            if (eat('-')) {
+                push(CompiledExpression.NEG);
+            } else if (eat('(')) {
+                push(PAREN);
+            } else if (NumberLexer.isNumberStart(ch)) {
+                parseNumber();
+                return;
+            } else if (Character.isLetter(ch) || ch == '_') {
+                if (parseIdentifier()) {
+                    return;
+                }
+            } else {
+                throw unexpected();
+            }
+        }
+    }
+    
+    // Shunting-yard over the operator stack. A group ends where its contents
+    // are followed by anything but a binary operator, exactly where the
+    // recursive grammar's parseExpression returned: a parenthesis then eats
+    // an optional ')', and a call expects ',' until it has all its arguments
+    private void parse() {
+        while (true) {
+            parseOperand();
+            popUnary();
+            while (true) {
+                int op = binaryOperator();
+                if (op != 0) {
+                    reduce(precedence(op));
+                    push(op);
+                    break;
+                }
+                reduce(0);
+                if (top < 0) {
+                    return;
+                }
+                int group = operators[top];
+                MathFunction function = null;
+                if ((group & KIND_MASK) == CALL) {
+                    function = MathFunction.VALUES[(group >>> 8) & 0xFF];
+                    if (group >>> 16 < function.arity()) {
+                        if (!eat(',')) {
+                            throw new ExpressionException(function.getName() + " takes "
+                                + function.arity() + " arguments", pos);
+                        }
+                        operators[top] = group + (1 << 16);
+                        break;
+                    }
+                }
+                top--;
+                nesting--;
+                // Like a parenthesised group, a call may omit its closing ')'
+                eat(')');
+                if (function != null) {
+                    emitCall(function);
+                }
+                popUnary();
+            }
+        }
+    }
+    
+    private int binaryOperator() {
+        while (Character.isWhitespace(ch)) {
+            nextChar();
+        }
+        int op;
+        switch (ch) {
+            case '+':
+                op = CompiledExpression.ADD;
+                break;
+            case '-':
+                op = CompiledExpression.SUB;
+                break;
+            case '*':
+                op = CompiledExpression.MUL;
+                break;
+            case '/':
+                op = CompiledExpression.DIV;
+                break;
+            default:
+                return 0;
+        }
+        nextChar();
+        return op;
+    }
+    
+    private static int precedence(int op) {
+        return op == CompiledExpression.MUL || op == CompiledExpression.DIV ? 2 : 1;
+    }
+    
+    // Emits the pending binary operators that bind at least as tightly as
+    // minPrecedence, stopping at the innermost open group
+    private void reduce(int minPrecedence) {
+        while (top >= 0) {
+            int op = operators[top];
+            if (op < CompiledExpression.ADD || op > CompiledExpression.DIV || precedence(op) < minPrecedence) {
+                return;
+            }
+            emitBinary(op);
+            top--;
+        }
+    }
+    
+    // A unary minus applies to the operand that just ended
+    private void popUnary() {
+        while (top >= 0 && operators[top] == CompiledExpression.NEG) {
+            emit(CompiledExpression.NEG);
+            top--;
+            nesting--;
+        }
+    }
+    
+    private void push(int entry) {
+        // Each group holds at most two pending binary operators, so bounding
+        // the groups and unary minuses bounds the whole stack
+        if (entry > CompiledExpression.DIV && ++nesting > MAX_NESTING) {
+            throw new ExpressionException("Expression is nested more than " + MAX_NESTING + " levels deep", pos);
+        }
+        if (top + 1 == operators.length) {
+            operators = Arrays.copyOf(operators, top * 2 + 2);
+        }
+        operators[++top] = entry;
+    }
+    
+    private void parseNumber() {
+        // Scan the literal in place and resume just after it
+        int start = pos;
+        pos = numbers.scan(expr, pos) - 1;
+        nextChar();
+        if (recordDecimals) {
+            recordDecimal(start);
+        }
+        emitConstant(numbers.value());
+    }
+    
+    // A name followed by '(' opens a function call and returns false, since
+    // its arguments come next; otherwise it reads a variable
+    private boolean parseIdentifier() {
+        int start = pos;
+        while (Character.isLetterOrDigit(ch) || ch == '_') {
+            nextChar();
+        }
+        String name = expr.substring(start, pos);
+        if (eat('(')) {
+            MathFunction function = MathFunction.forName(name);
+            if (function == null) {
+                throw new ExpressionException("Unknown function: " + name, start);
+            }
+            push(CALL | (function.ordinal() << 8) | (1 << 16));
+            return false;
+        }
+        for (int slot = 0; slot < variables.length; slot++) {
+            if (variables[slot].equals(name)) {
+                emitLoad(slot);
+                return true;
+            }
+        }
+        throw new ExpressionException("Unknown variable: " + name, start);
+    }
+}
@@ -0,0 +1,376 @@
+package calc.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+/**
+ * Compiled formulas saved to a file, so a service that restarts with a
+ * large catalog does not parse every formula again. {@link #write} stores
+ * the optimized postfix programs. {@link #open} memory-maps the file and
+ * reads only its header; each formula is decoded from the mapping the first
+ * time it is asked for. Decoded programs are checked before they are
+ * returned, so a damaged file fails with an exception rather than a wrong
+ * result.
+ *
+ * <p>Functions are stored by name, so a snapshot stays valid when
+ * {@link MathFunction} gains or reorders constants. A snapshot is immutable
+ * and can be shared between threads.
+ *
+ * <pre>
+ * header:  int magic, int version, int formulaCount, int functionCount,
+ *          int crc32 of the names, offsets and keys,
+ *          functionCount x (byte length, UTF-8 name)
+ * offsets: int[formulaCount], where each formula starts
+ * keys:    formulaCount x (int hash, int formula), sorted by hash
+ * formula: int crc32 of the rest, int codeLength, int constantCount,
+ *          int variableCount, int maxStack, int eliminatedNodes, int textLength,
+ *          int[codeLength] code, double[constantCount] constants,
+ *          UTF-8 text: expression, then '\0' and each variable name
+ * </pre>
+ */
+public final class FormulaSnapshot {
+    static final int MAGIC = 0x43414C43;
+    // Version 2 changed how variables enter the key hashes
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    private static final int FORMULA_HEADER_SIZE = 28;
+    
+    // Read with absolute gets only, so threads can share it
+    private final ByteBuffer data;
+    private final int count;
+    private final int offsetsStart;
+    private final int keysStart;
+    // MathFunction ordinals at write time, mapped to the current ones
+    private final MathFunction[] functions;
+    // Filled in on first use. Programs are immutable, so a race only
+    // decodes one twice
+    private final CompiledExpression[] decoded;
+    
+    private FormulaSnapshot(ByteBuffer data, int count, int offsetsStart, MathFunction[] functions) {
+        this.data = data;
+        this.count = count;
+        this.offsetsStart = offsetsStart;
+        this.keysStart = offsetsStart + 4 * count;
+        this.functions = functions;
+        this.decoded = new CompiledExpression[count];
+    }
+    
+    /**
+     * Maps a snapshot written by {@link #write}. Only the header is read
+     * here; formulas are decoded as they are used.
+     *
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static FormulaSnapshot open(Path path) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot larger than 2 GB: " + path);
+            }
+            // The mapping stays valid after the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int size = data.capacity();
+        if (size < HEADER_SIZE || data.getInt(0) != MAGIC) {
+            throw new IOException("Not a formula snapshot: " + path);
+        }
+        if (data.getInt(4) != VERSION) {
+            throw new IOException("Unsupported snapshot version " + data.getInt(4) + ": " + path);
+        }
+        int count = data.getInt(8);
+        int functionCount = data.getInt(12);
+        if (count < 0 || functionCount < 0 || functionCount > 0xFFFFFF) {
+            throw new IOException("Corrupt snapshot header: " + path);
+        }
+        MathFunction[] functions = new MathFunction[functionCount];
+        int at = HEADER_SIZE;
+        for (int i = 0; i < functionCount; i++) {
+            int length = at < size ? data.get(at) & 0xFF : -1;
+            if (length < 0 || at + 1 + length > size) {
+                throw new IOException("Corrupt snapshot header: " + path);
+            }
+            byte[] name = new byte[length];
+            ByteBuffer source = data.duplicate();
+            source.position(at + 1);
+            source.get(name);
+            functions[i] = MathFunction.forName(new String(name, StandardCharsets.UTF_8));
+            at += 1 + length;
+        }
+        if (12L * count > size - at
+                || data.getInt(16) != checksum(data, HEADER_SIZE, at + 12 * count)) {
+            throw new IOException("Corrupt snapshot header: " + path);
+        }
+        return new FormulaSnapshot(data, count, at, functions);
+    }
+    
+    /**
+     * Writes formulas to a snapshot, in iteration order. The file is written
+     * next to {@code path} and then moved over it, so a reader never sees a
+     * partial snapshot.
+     */
+    public static void write(Path path, Collection<CompiledExpression> formulas) throws IOException {
+        CompiledExpression[] programs = formulas.toArray(new CompiledExpression[0]);
+        int count = programs.length;
+        byte[][] texts = new byte[count][];
+        int[] keys = new int[count];
+        long size = HEADER_SIZE;
+        for (MathFunction function : MathFunction.VALUES) {
+            size += 1 + function.getName().getBytes(StandardCharsets.UTF_8).length;
+        }
+        size += 12L * count;
+        for (int i = 0; i < count; i++) {
+            CompiledExpression program = programs[i];
+            StringBuilder text = new StringBuilder(program.getSource());
+            for (String variable : program.variableNames()) {
+                text.append('\0').append(variable);
+            }
+            texts[i] = text.toString().getBytes(StandardCharsets.UTF_8);
+            keys[i] = ExpressionCache.key(program.getSource(), program.variableNames()).hashCode();
+            size += FORMULA_HEADER_SIZE + 4L * program.code().length
+                + 8L * program.constants().length + texts[i].length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot would be larger than 2 GB: " + size + " bytes");
+        }
+    
+        ByteBuffer out = ByteBuffer.allocate((int) size);
+        out.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(MathFunction.VALUES.length).putInt(0);
+        for (MathFunction function : MathFunction.VALUES) {
+            byte[] name = function.getName().getBytes(StandardCharsets.UTF_8);
+            out.put((byte) name.length).put(name);
+        }
+        int offsetsStart = out.position();
+        int at = offsetsStart + 12 * count;
+        for (int i = 0; i < count; i++) {
+            out.putInt(at);
+            CompiledExpression program = programs[i];
+            at += FORMULA_HEADER_SIZE + 4 * program.code().length
+                + 8 * program.constants().length + texts[i].length;
+        }
+        // Hash in the high half, formula in the low half, so sorting orders by hash
+        long[] sortedKeys = new long[count];
+        for (int i = 0; i < count; i++) {
+            sortedKeys[i] = (long) keys[i] << 32 | i;
+        }
+        Arrays.sort(sortedKeys);
+        for (long key : sortedKeys) {
+            out.putInt((int) (key >> 32)).putInt((int) key);
+        }
+        out.putInt(16, checksum(out, HEADER_SIZE, out.position()));
+        for (int i = 0; i < count; i++) {
+            CompiledExpression program = programs[i];
+            int[] code = program.code();
+            double[] constants = program.constants();
+            int checksumAt = out.position();
+            out.putInt(0).putInt(code.length).putInt(constants.length).putInt(program.variableCount())
+                .putInt(program.maxStack()).putInt(program.eliminatedNodes()).putInt(texts[i].length);
+            for (int word : code) {
+                out.putInt(word);
+            }
+            for (double constant : constants) {
+                out.putDouble(constant);
+            }
+            out.put(texts[i]);
+            out.putInt(checksumAt, checksum(out, checksumAt + 4, out.position()));
+        }
+        out.flip();
+    
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(false);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /** Number of formulas in the snapshot. */
+    public int size() {
+        return count;
+    }
+    
+    /**
+     * Returns formula {@code index}, in the order it was written.
+     *
+     * @throws IllegalStateException if the stored formula is damaged
+     */
+    public CompiledExpression get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Formula " + index + " of " + count);
+        }
+        CompiledExpression program = decoded[index];
+        if (program == null) {
+            program = decode(index);
+            decoded[index] = program;
+        }
+        return program;
+    }
+    
+    /**
+     * Returns the stored program for an expression and its variable names,
+     * matched as {@link ExpressionCache} matches them, or null if the
+     * snapshot does not have it.
+     */
+    public CompiledExpression find(String expression, String... variables) {
+        return lookup(ExpressionCache.key(expression, variables));
+    }
+    
+    CompiledExpression lookup(String key) {
+        int hash = key.hashCode();
+        // First key entry with this hash
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (data.getInt(keysStart + 8 * middle) < hash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int i = low; i < count && data.getInt(keysStart + 8 * i) == hash; i++) {
+            int index = data.getInt(keysStart + 8 * i + 4);
+            CompiledExpression program = get(index);
+            if (ExpressionCache.key(program.getSource(), program.variableNames()).equals(key)) {
+                return program;
+            }
+        }
+        return null;
+    }
+    
+    private CompiledExpression decode(int index) {
+        int at = data.getInt(offsetsStart + 4 * index);
+        if (at < keysStart + 8 * count || at > data.capacity() - FORMULA_HEADER_SIZE) {
+            throw corrupt(index, "offset " + at + " out of range");
+        }
+        int codeLength = data.getInt(at + 4);
+        int constantCount = data.getInt(at + 8);
+        int variableCount = data.getInt(at + 12);
+        int maxStack = data.getInt(at + 16);
+        int eliminatedNodes = data.getInt(at + 20);
+        int textLength = data.getInt(at + 24);
+        long end = at + FORMULA_HEADER_SIZE + 4L * codeLength + 8L * constantCount + textLength;
+        // Each variable name follows a '\0', so there are no more names than bytes
+        if (codeLength <= 0 || constantCount < 0 || variableCount < 0 || textLength < variableCount
+                || end > data.capacity()) {
+            throw corrupt(index, "lengths out of range");
+        }
+        if (data.getInt(at) != checksum(data, at + 4, (int) end)) {
+            throw corrupt(index, "checksum mismatch");
+        }
+    
+        ByteBuffer record = data.duplicate();
+        record.position(at + FORMULA_HEADER_SIZE);
+        int[] code = new int[codeLength];
+        record.asIntBuffer().get(code);
+        record.position(record.position() + 4 * codeLength);
+        for (int pc = 0; pc < codeLength; pc++) {
+            int word = code[pc];
+            if ((word & CompiledExpression.OPCODE_MASK) == CompiledExpression.CALL) {
+                int stored = word >>> CompiledExpression.OPERAND_SHIFT;
+                MathFunction function = stored < functions.length ? functions[stored] : null;
+                if (function == null) {
+                    throw corrupt(index, "unknown function " + stored);
+                }
+                code[pc] = function.ordinal() << CompiledExpression.OPERAND_SHIFT | CompiledExpression.CALL;
+            }
+        }
+        double[] constants = new double[constantCount];
+        record.asDoubleBuffer().get(constants);
+        record.position(record.position() + 8 * constantCount);
+        byte[] bytes = new byte[textLength];
+        record.get(bytes);
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        int nameStart = text.indexOf('\0');
+        String source = nameStart < 0 ? text : text.substring(0, nameStart);
+        String[] variables = new String[variableCount];
+        for (int slot = 0; slot < variableCount; slot++) {
+            if (nameStart < 0) {
+                throw corrupt(index, "expected " + variableCount + " variable names");
+            }
+            int nameEnd = text.indexOf('\0', nameStart + 1);
+            variables[slot] = text.substring(nameStart + 1, nameEnd < 0 ? text.length() : nameEnd);
+            nameStart = nameEnd;
+        }
+        if (nameStart >= 0) {
+            throw corrupt(index, "expected " + variableCount + " variable names");
+        }
+        if (stackDepth(code, constantCount, variableCount) > maxStack) {
+            throw corrupt(index, "program needs more than " + maxStack + " stack slots");
+        }
+        return new CompiledExpression(source, variables, code, constants, maxStack, eliminatedNodes);
+    }
+    
+    // Replays the stack effect of every instruction, so a damaged program
+    // cannot read outside its constants, bindings or operand stack. Returns
+    // the deepest the stack gets, or Integer.MAX_VALUE if the program is
+    // not well formed.
+    private static int stackDepth(int[] code, int constantCount, int variableCount) {
+        int depth = 0;
+        int maxDepth = 0;
+        for (int word : code) {
+            int operand = word >>> CompiledExpression.OPERAND_SHIFT;
+            switch (word & CompiledExpression.OPCODE_MASK) {
+                case CompiledExpression.PUSH:
+                    if (operand >= constantCount) {
+                        return Integer.MAX_VALUE;
+                    }
+                    depth++;
+                    break;
+                case CompiledExpression.LOAD:
+                    if (operand >= variableCount) {
+                        return Integer.MAX_VALUE;
+                    }
+                    depth++;
+                    break;
+                case CompiledExpression.ADD:
+                case CompiledExpression.SUB:
+                case CompiledExpression.MUL:
+                case CompiledExpression.DIV:
+                    depth--;
+                    break;
+                case CompiledExpression.NEG:
+                    break;
+                case CompiledExpression.CALL:
+                    depth -= MathFunction.VALUES[operand].arity() - 1;
+                    break;
+                default:
+                    return Integer.MAX_VALUE;
+            }
+            if (depth < 1) {
+                return Integer.MAX_VALUE;
+            }
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        return depth == 1 ? maxDepth : Integer.MAX_VALUE;
+    }
+    
+    private static int checksum(ByteBuffer buffer, int from, int to) {
+        ByteBuffer range = buffer.duplicate();
+        range.limit(to).position(from);
+        CRC32 crc = new CRC32();
+        crc.update(range);
+        return (int) crc.getValue();
+    }
+    
+    private static IllegalStateException corrupt(int index, String detail) {
+        return new IllegalStateException("Corrupt snapshot formula " + index + ": " + detail);
+    }
+    
+    @Override
+    public String toString() {
+        return "FormulaSnapshot[formulas=" + count + "]";
+    }
+}
@@ -0,0 +1,163 @@
+package calc.engine;
+
+import java.util.Arrays;
+
+// Reverse-mode differentiation of a compiled program. The forward pass keeps
+// the value every instruction produces; the backward pass then carries the
+// derivative of the result with respect to each of those values back through
+// the program, so all partial derivatives cost one extra pass however many
+// variables there are.
+final class GradientKernel {
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+    
+    private GradientKernel() {
+    }
+    
+    // Per-thread value and adjoint per instruction, grown to fit the longest
+    // program seen
+    private static final class Workspace {
+        double[] values = new double[16];
+        double[] adjoints = new double[16];
+        
+        Workspace fit(int length) {
+            if (values.length < length) {
+                values = new double[length];
+                adjoints = new double[length];
+            }
+            return this;
+        }
+    }
+    
+    // For each instruction with two operands, the index of the instruction
+    // that produced the left one; the right one is always produced by the
+    // instruction just before
+    static int[] leftOperands(int[] code) {
+        int[] producers = new int[code.length];
+        int[] left = new int[code.length];
+        int sp = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            int word = code[pc];
+            switch (word & CompiledExpression.OPCODE_MASK) {
+                case CompiledExpression.PUSH:
+                case CompiledExpression.LOAD:
+                    producers[++sp] = pc;
+                    break;
+                case CompiledExpression.NEG:
+                    producers[sp] = pc;
+                    break;
+                case CompiledExpression.CALL:
+                    if (MathFunction.VALUES[word >>> CompiledExpression.OPERAND_SHIFT].arity() == 2) {
+                        left[pc] = producers[--sp];
+                    }
+                    producers[sp] = pc;
+                    break;
+                default:
+                    left[pc] = producers[--sp];
+                    producers[sp] = pc;
+            }
+        }
+        return left;
+    }
+    
+    static double evaluate(CompiledExpression expression, double[] bindings, double[] gradient) {
+        int slotCount = expression.variableCount();
+        if (bindings.length < slotCount) {
+            throw new IllegalArgumentException("Expected " + slotCount
+                + " bindings but got " + bindings.length);
+        }
+        if (gradient.length < slotCount) {
+            throw new IllegalArgumentException("Expected room for " + slotCount
+                + " derivatives but got " + gradient.length);
+        }
+        int[] code = expression.code();
+        double[] constants = expression.constants();
+        int[] left = expression.leftOperands();
+        int n = code.length;
+        Workspace workspace = WORKSPACE.get().fit(n);
+        double[] values = workspace.values;
+        double[] adjoints = workspace.adjoints;
+        
+        for (int pc = 0; pc < n; pc++) {
+            int word = code[pc];
+            int operand = word >>> CompiledExpression.OPERAND_SHIFT;
+            switch (word & CompiledExpression.OPCODE_MASK) {
+                case CompiledExpression.PUSH:
+                    values[pc] = constants[operand];
+                    break;
+                case CompiledExpression.LOAD:
+                    values[pc] = bindings[operand];
+                    break;
+                case CompiledExpression.ADD:
+                    values[pc] = values[left[pc]] + values[pc - 1];
+                    break;
+                case CompiledExpression.SUB:
+                    values[pc] = values[left[pc]] - values[pc - 1];
+                    break;
+                case CompiledExpression.MUL:
+                    values[pc] = values[left[pc]] * values[pc - 1];
+                    break;
+                case CompiledExpression.DIV:
+                    values[pc] = values[left[pc]] / values[pc - 1];
+                    break;
+                case CompiledExpression.NEG:
+                    values[pc] = -values[pc - 1];
+                    break;
+                case CompiledExpression.CALL:
+                    MathFunction function = MathFunction.VALUES[operand];
+                    values[pc] = function.arity() == 2
+                        ? function.apply(values[left[pc]], values[pc - 1])
+                        : function.apply(values[pc - 1]);
+                    break;
+                default:
+                    throw new IllegalStateException("Bad opcode: " + word);
+            }
+        }
+        
+        Arrays.fill(gradient, 0, slotCount, 0);
+        Arrays.fill(adjoints, 0, n - 1, 0);
+        adjoints[n - 1] = 1;
+        for (int pc = n - 1; pc >= 0; pc--) {
+            int word = code[pc];
+            int operand = word >>> CompiledExpression.OPERAND_SHIFT;
+            double adjoint = adjoints[pc];
+            switch (word & CompiledExpression.OPCODE_MASK) {
+                case CompiledExpression.PUSH:
+                    break;
+                case CompiledExpression.LOAD:
+                    gradient[operand] += adjoint;
+                    break;
+                case CompiledExpression.ADD:
+                    adjoints[left[pc]] += adjoint;
+                    adjoints[pc - 1] += adjoint;
+                    break;
+                case CompiledExpression.SUB:
+                    adjoints[left[pc]] += adjoint;
+                    adjoints[pc - 1] -= adjoint;
+                    break;
+                case CompiledExpression.MUL:
+                    adjoints[left[pc]] += adjoint * values[pc - 1];
+                    adjoints[pc - 1] += adjoint * values[left[pc]];
+                    break;
+                case CompiledExpression.DIV:
+                    // d(a/b)/db = -(a/b)/b
+                    adjoints[left[pc]] += adjoint / values[pc - 1];
+                    adjoints[pc - 1] -= adjoint * values[pc] / values[pc - 1];
+                    break;
+                case CompiledExpression.NEG:
+                    adjoints[pc - 1] -= adjoint;
+                    break;
+                default:
+                    MathFunction function = MathFunction.VALUES[operand];
+                    if (function.arity() == 2) {
+                        double x = values[left[pc]];
+                        double y = values[pc - 1];
+                        adjoints[left[pc]] += adjoint * function.derivative(0, x, y, values[pc]);
+                        adjoints[pc - 1] += adjoint * function.derivative(1, x, y, values[pc]);
+                    } else {
+                        adjoints[pc - 1] += adjoint * function.derivative(values[pc - 1], values[pc]);
+                    }
+            }
+        }
+        return values[n - 1];
+    }
+}
@@ -0,0 +1,440 @@
+package calc.engine;
+
+// Evaluates a compiled program over intervals: every operand is a range
+// [lo, hi] and every instruction produces a range that holds all its
+// results over those ranges. Bounds are rounded outward, one ulp for
+// arithmetic and two for library functions, which are only accurate to one
+// ulp, so the final range encloses both the exact result and whatever
+// evaluate() returns for any bindings in the input box. Points where the
+// formula is undefined (NaN) are left out; a range with none left is empty,
+// stored as NaN bounds.
+final class IntervalKernel {
+    private static final double TWO_PI = 2 * Math.PI;
+    private static final double HALF_PI = Math.PI / 2;
+    // Past this magnitude, locating turning points of sin, cos and tan in
+    // double arithmetic is not reliable, so they give their full range
+    private static final double MAX_TRIG_ARGUMENT = 1e6;
+    
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+    
+    private IntervalKernel() {
+    }
+    
+    // Per-thread lower and upper operand stacks, and one row of bounds for
+    // columnar calls, grown to fit the largest program seen
+    private static final class Workspace {
+        double[] lo = new double[16];
+        double[] hi = new double[16];
+        double[] rowLower = new double[16];
+        double[] rowUpper = new double[16];
+        final double[] rowBounds = new double[2];
+    
+        Workspace fit(int size) {
+            if (lo.length < size) {
+                lo = new double[size];
+                hi = new double[size];
+            }
+            return this;
+        }
+    
+        Workspace fitRow(int slots) {
+            if (rowLower.length < slots) {
+                rowLower = new double[slots];
+                rowUpper = new double[slots];
+            }
+            return this;
+        }
+    }
+    
+    // One box per row: columns[slot][row] holds the bounds of each variable
+    static void evaluate(CompiledExpression expression, double[][] lowerColumns, double[][] upperColumns,
+                         double[] resultLower, double[] resultUpper, int from, int to) {
+        int slotCount = expression.variableCount();
+        if (lowerColumns.length < slotCount || upperColumns.length < slotCount) {
+            throw new IllegalArgumentException("Expected " + slotCount + " columns per side but got "
+                + lowerColumns.length + " and " + upperColumns.length);
+        }
+        Workspace workspace = WORKSPACE.get().fitRow(slotCount);
+        double[] lower = workspace.rowLower;
+        double[] upper = workspace.rowUpper;
+        double[] bounds = workspace.rowBounds;
+        for (int row = from; row < to; row++) {
+            for (int slot = 0; slot < slotCount; slot++) {
+                lower[slot] = lowerColumns[slot][row];
+                upper[slot] = upperColumns[slot][row];
+            }
+            evaluate(expression, lower, upper, bounds);
+            resultLower[row] = bounds[0];
+            resultUpper[row] = bounds[1];
+        }
+    }
+    
+    static void evaluate(CompiledExpression expression, double[] lower, double[] upper, double[] bounds) {
+        int slotCount = expression.variableCount();
+        if (lower.length < slotCount || upper.length < slotCount) {
+            throw new IllegalArgumentException("Expected " + slotCount + " bounds per side but got "
+                + lower.length + " and " + upper.length);
+        }
+        if (bounds.length < 2) {
+            throw new IllegalArgumentException("Expected room for 2 bounds but got " + bounds.length);
+        }
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (!(lower[slot] <= upper[slot])) {
+                throw new IllegalArgumentException("Empty range for " + expression.variableNames()[slot]
+                    + ": " + lower[slot] + " to " + upper[slot]);
+            }
+        }
+        int[] code = expression.code();
+        double[] constants = expression.constants();
+        Workspace workspace = WORKSPACE.get().fit(expression.maxStack());
+        double[] lo = workspace.lo;
+        double[] hi = workspace.hi;
+        int sp = -1;
+        for (int pc = 0; pc < code.length; pc++) {
+            int word = code[pc];
+            int operand = word >>> CompiledExpression.OPERAND_SHIFT;
+            int op = word & CompiledExpression.OPCODE_MASK;
+            switch (op) {
+                case CompiledExpression.PUSH:
+                    sp++;
+                    lo[sp] = constants[operand];
+                    hi[sp] = constants[operand];
+                    break;
+                case CompiledExpression.LOAD:
+                    sp++;
+                    lo[sp] = lower[operand];
+                    hi[sp] = upper[operand];
+                    break;
+                case CompiledExpression.NEG: {
+                    double negated = -hi[sp];
+                    hi[sp] = -lo[sp];
+                    lo[sp] = negated;
+                    break;
+                }
+                case CompiledExpression.CALL: {
+                    MathFunction function = MathFunction.VALUES[operand];
+                    if (function.arity() == 2) {
+                        sp--;
+                        pow(lo, hi, sp, lo[sp + 1], hi[sp + 1]);
+                    } else {
+                        call(function, lo, hi, sp);
+                    }
+                    break;
+                }
+                default:
+                    sp--;
+                    arithmetic(op, lo, hi, sp, lo[sp + 1], hi[sp + 1]);
+            }
+        }
+        bounds[0] = lo[0];
+        bounds[1] = hi[0];
+    }
+    
+    // Combines [lo[i], hi[i]] with [c, d] in place
+    private static void arithmetic(int op, double[] lo, double[] hi, int i, double c, double d) {
+        double a = lo[i];
+        double b = hi[i];
+        if (a != a || c != c) {
+            setEmpty(lo, hi, i);
+            return;
+        }
+        double low;
+        double high;
+        switch (op) {
+            case CompiledExpression.ADD:
+                low = a + c;
+                high = b + d;
+                break;
+            case CompiledExpression.SUB:
+                low = a - d;
+                high = b - c;
+                break;
+            case CompiledExpression.MUL: {
+                double ac = times(a, c);
+                double ad = times(a, d);
+                double bc = times(b, c);
+                double bd = times(b, d);
+                low = Math.min(Math.min(ac, ad), Math.min(bc, bd));
+                high = Math.max(Math.max(ac, ad), Math.max(bc, bd));
+                break;
+            }
+            case CompiledExpression.DIV:
+                divide(lo, hi, i, c, d);
+                return;
+            default:
+                throw new IllegalStateException("Bad opcode: " + op);
+        }
+        // Opposite infinities, as in [-inf, 0] + [inf, inf], leave the sum unbounded
+        set(lo, hi, i, low != low ? Double.NEGATIVE_INFINITY : low, high != high ? Double.POSITIVE_INFINITY : high, 1);
+    }
+    
+    // Extended division: a divisor that contains zero gives a half-line when
+    // zero is one of its ends and the whole line when it is inside. The sign
+    // of a zero end matters, since x / 0.0 and x / -0.0 are infinities of
+    // opposite sign: [-1, 0.0] reaches the other infinity, [-1, -0.0] does not
+    private static void divide(double[] lo, double[] hi, int i, double c, double d) {
+        double a = lo[i];
+        double b = hi[i];
+        if (a == 0 && b == 0) {
+            // 0 / y is 0 wherever it is defined, of either sign
+            set(lo, hi, i, -0.0, 0.0, 0);
+        } else if (c > 0 || d < 0) {
+            double ac = a / c;
+            double ad = a / d;
+            double bc = b / c;
+            double bd = b / d;
+            setCorners(lo, hi, i, ac, ad, bc, bd, 1);
+            if ((c == Double.NEGATIVE_INFINITY || d == Double.POSITIVE_INFINITY)
+                    && a < Double.POSITIVE_INFINITY && b > Double.NEGATIVE_INFINITY) {
+                // Finite dividends over an infinite divisor give zero, which
+                // the corners miss when they are all inf / inf
+                include(lo, hi, i, 0);
+            }
+        } else if (c == 0 && d > 0 && isPositive(c) && a >= 0) {
+            set(lo, hi, i, a / d, Double.POSITIVE_INFINITY, 1);
+        } else if (c == 0 && d > 0 && isPositive(c) && b <= 0) {
+            set(lo, hi, i, Double.NEGATIVE_INFINITY, b / d, 1);
+        } else if (c < 0 && d == 0 && !isPositive(d) && a >= 0) {
+            set(lo, hi, i, Double.NEGATIVE_INFINITY, a / c, 1);
+        } else if (c < 0 && d == 0 && !isPositive(d) && b <= 0) {
+            set(lo, hi, i, b / c, Double.POSITIVE_INFINITY, 1);
+        } else {
+            set(lo, hi, i, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0);
+        }
+    }
+    
+    private static boolean isPositive(double zero) {
+        return Double.doubleToRawLongBits(zero) >= 0;
+    }
+    
+    // Products of bounds take 0 * inf as 0, since an infinite bound is only
+    // approached, never reached
+    private static double times(double x, double y) {
+        return x == 0 || y == 0 ? 0 : x * y;
+    }
+    
+    private static void call(MathFunction function, double[] lo, double[] hi, int i) {
+        double a = lo[i];
+        double b = hi[i];
+        if (a != a) {
+            return;
+        }
+        switch (function) {
+            case LN:
+            case LOG10:
+            case LOG2:
+            case SQRT:
+                // Increasing on [0, inf)
+                if (b < 0) {
+                    setEmpty(lo, hi, i);
+                } else {
+                    a = Math.max(a, 0);
+                    set(lo, hi, i, function.apply(a), function.apply(b), 2);
+                }
+                break;
+            case EXP:
+            case ATAN:
+                set(lo, hi, i, function.apply(a), function.apply(b), 2);
+                break;
+            case ASIN:
+            case ACOS:
+                if (a > 1 || b < -1) {
+                    setEmpty(lo, hi, i);
+                } else {
+                    a = Math.max(a, -1);
+                    b = Math.min(b, 1);
+                    if (function == MathFunction.ASIN) {
+                        set(lo, hi, i, Math.asin(a), Math.asin(b), 2);
+                    } else {
+                        set(lo, hi, i, Math.acos(b), Math.acos(a), 2);
+                    }
+                }
+                break;
+            case SIN:
+                // sin x = cos(x - pi/2); the rounding of pi/2 is covered by
+                // the slack around turning points
+                periodic(lo, hi, i, a, b, Math.sin(a), Math.sin(b), HALF_PI);
+                break;
+            case COS:
+                periodic(lo, hi, i, a, b, Math.cos(a), Math.cos(b), 0);
+                break;
+            case TAN:
+                if (b - a >= Math.PI || Math.max(-a, b) > MAX_TRIG_ARGUMENT
+                        || containsPoint(a, b, HALF_PI, Math.PI)) {
+                    // A pole inside the range
+                    set(lo, hi, i, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0);
+                } else {
+                    set(lo, hi, i, Math.tan(a), Math.tan(b), 2);
+                }
+                break;
+            default:
+                throw new IllegalStateException("No interval form for " + function);
+        }
+    }
+    
+    // Range of a cosine wave shifted so its maxima are at shift + 2k*pi,
+    // given its values at both ends
+    private static void periodic(double[] lo, double[] hi, int i, double a, double b,
+                                 double fa, double fb, double shift) {
+        if (b - a >= TWO_PI || Math.max(-a, b) > MAX_TRIG_ARGUMENT) {
+            set(lo, hi, i, -1, 1, 0);
+            return;
+        }
+        double low = containsPoint(a, b, shift + Math.PI, TWO_PI) ? -1 : Math.max(-1, Math.nextDown(Math.nextDown(Math.min(fa, fb))));
+        double high = containsPoint(a, b, shift, TWO_PI) ? 1 : Math.min(1, Math.nextUp(Math.nextUp(Math.max(fa, fb))));
+        set(lo, hi, i, low, high, 0);
+    }
+    
+    // Whether [a, b] may contain point + k * period for some integer k. The
+    // slack errs towards yes, which only widens the result
+    private static boolean containsPoint(double a, double b, double point, double period) {
+        double slack = 1e-9 * Math.max(1, Math.max(-a, b));
+        double k = Math.ceil((a - slack - point) / period);
+        return point + k * period <= b + slack;
+    }
+    
+    private static void pow(double[] lo, double[] hi, int i, double c, double d) {
+        double a = lo[i];
+        double b = hi[i];
+        if (c != c) {
+            setEmpty(lo, hi, i);
+            return;
+        }
+        if (a != a) {
+            // x^0 is 1 even where x is undefined
+            if (c <= 0 && d >= 0) {
+                set(lo, hi, i, 1, 1, 0);
+            } else {
+                setEmpty(lo, hi, i);
+            }
+            return;
+        }
+        if (c == d && Double.isInfinite(c)) {
+            // x^inf only depends on |x|
+            double magnitudeLow = a <= 0 && b >= 0 ? 0 : Math.min(Math.abs(a), Math.abs(b));
+            double magnitudeHigh = Math.max(Math.abs(a), Math.abs(b));
+            setCorners(lo, hi, i, Math.pow(magnitudeLow, c), Math.pow(magnitudeHigh, c), Double.NaN, Double.NaN, 0);
+            return;
+        }
+        if (c == d && c == Math.rint(c) && a < 0) {
+            integerPower(lo, hi, i, a, b, c);
+            return;
+        }
+        // Math.pow gives -inf raised to a non-integer a value, unlike finite
+        // negative bases
+        double fromNegativeInfinity = a == Double.NEGATIVE_INFINITY ? Math.pow(a, c) : Double.NaN;
+        // Odd negative powers of -0.0 are -inf
+        boolean negativeZero = a == 0 && !isPositive(a) && c < 0;
+        if (a < 0) {
+            if (c != d) {
+                // Negative bases with integer exponents somewhere in [c, d]
+                set(lo, hi, i, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0);
+                return;
+            }
+            // A fixed non-integer exponent is undefined below zero
+            if (b < 0) {
+                setEmpty(lo, hi, i);
+                include(lo, hi, i, fromNegativeInfinity);
+                return;
+            }
+            a = 0;
+        }
+        // On a non-negative base x^y is monotonic in each argument, so the
+        // corners hold the extremes
+        a += 0.0;
+        setCorners(lo, hi, i, Math.pow(a, c), Math.pow(a, d), Math.pow(b, c), Math.pow(b, d), 2);
+        include(lo, hi, i, fromNegativeInfinity);
+        if (negativeZero) {
+            include(lo, hi, i, Double.NEGATIVE_INFINITY);
+        }
+        if (a <= 1 && b >= 1) {
+            // 1^y is 1 for finite y, though the corners 1^inf are NaN
+            include(lo, hi, i, 1);
+        }
+    }
+    
+    // x^n for a whole number n over a range that includes negative bases
+    private static void integerPower(double[] lo, double[] hi, int i, double a, double b, double n) {
+        double fa = Math.pow(a, n);
+        double fb = Math.pow(b, n);
+        boolean even = Math.abs(n % 2) == 0;
+        if (n == 0) {
+            set(lo, hi, i, 1, 1, 0);
+        } else if (n > 0) {
+            if (!even) {
+                set(lo, hi, i, fa, fb, 2);
+            } else if (b <= 0) {
+                set(lo, hi, i, fb, fa, 2);
+            } else {
+                set(lo, hi, i, 0, Math.max(fa, fb), 2);
+            }
+        } else if (b < 0) {
+            // Negative powers are monotonic away from zero
+            set(lo, hi, i, Math.min(fa, fb), Math.max(fa, fb), 2);
+        } else if (even) {
+            set(lo, hi, i, b == 0 ? fa : Math.min(fa, fb), Double.POSITIVE_INFINITY, 2);
+        } else if (b == 0 && !isPositive(b)) {
+            // Odd negative powers of -0.0 are -inf, of 0.0 +inf
+            set(lo, hi, i, Double.NEGATIVE_INFINITY, fa, 2);
+        } else {
+            set(lo, hi, i, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0);
+        }
+    }
+    
+    // Stores the range of four corner values. A NaN corner, such as
+    // inf / inf or 1^inf, is a limit the other corners already bound
+    private static void setCorners(double[] lo, double[] hi, int i, double w, double x, double y, double z, int ulps) {
+        double low = Double.POSITIVE_INFINITY;
+        double high = Double.NEGATIVE_INFINITY;
+        if (w == w) {
+            low = w;
+            high = w;
+        }
+        if (x == x) {
+            low = Math.min(low, x);
+            high = Math.max(high, x);
+        }
+        if (y == y) {
+            low = Math.min(low, y);
+            high = Math.max(high, y);
+        }
+        if (z == z) {
+            low = Math.min(low, z);
+            high = Math.max(high, z);
+        }
+        if (low > high) {
+            setEmpty(lo, hi, i);
+        } else {
+            set(lo, hi, i, low, high, ulps);
+        }
+    }
+    
+    // Stores [low, high] widened outward by `ulps`
+    private static void set(double[] lo, double[] hi, int i, double low, double high, int ulps) {
+        for (int u = 0; u < ulps; u++) {
+            low = Math.nextDown(low);
+            high = Math.nextUp(high);
+        }
+        lo[i] = low;
+        hi[i] = high;
+    }
+    
+    // Widens [lo[i], hi[i]] to take in an exact value, unless it is NaN
+    private static void include(double[] lo, double[] hi, int i, double value) {
+        if (value != value) {
+            return;
+        }
+        if (lo[i] != lo[i]) {
+            lo[i] = value;
+            hi[i] = value;
+        } else {
+            lo[i] = Math.min(lo[i], value);
+            hi[i] = Math.max(hi[i], value);
+        }
+    }
+    
+    private static void setEmpty(double[] lo, double[] hi, int i) {
+        lo[i] = Double.NaN;
+        hi[i] = Double.NaN;
+    }
+}
@@ -0,0 +1,39 @@
+package calc.engine;
+
+/** Logarithms offered by the logarithm tab. */
+public enum LogBase {
+    NATURAL("Natural Log (ln)"),
+    BASE_10("Log base 10 (log10)"),
+    BASE_2("Log base 2 (log2)");
+    
+    private final String label;
+    
+    LogBase(String label) {
+        this.label = label;
+    }
+    
+    public String getLabel() {
+        return label;
+    }
+    
+    /** The expression function computing this logarithm. */
+    public MathFunction function() {
+        switch (this) {
+            case BASE_10:
+                return MathFunction.LOG10;
+            case BASE_2:
+                return MathFunction.LOG2;
+            default:
+                return MathFunction.LN;
+        }
+    }
+    
+    public double apply(double value) {
+        return function().apply(value);
+    }
+    
+    @Override
+    public String toString() {
+        return label;
+    }
+}
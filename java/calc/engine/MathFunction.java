@@ -0,0 +1,256 @@
+package calc.engine;
+
+/**
+ * Functions callable from expressions, such as {@code sqrt(2)} or
+ * {@code pow(x, 3)}. Besides the scalar forms, each function has an array
+ * form that applies it over a range in one tight loop, which is how compiled
+ * expressions evaluate them over columns.
+ */
+public enum MathFunction {
+    LN("ln", 1),
+    LOG10("log10", 1),
+    LOG2("log2", 1),
+    EXP("exp", 1),
+    SQRT("sqrt", 1),
+    POW("pow", 2),
+    SIN("sin", 1),
+    COS("cos", 1),
+    TAN("tan", 1),
+    ASIN("asin", 1),
+    ACOS("acos", 1),
+    ATAN("atan", 1);
+    
+    // Indexed by ordinal, which is the operand of a CALL instruction
+    static final MathFunction[] VALUES = values();
+    
+    private static final double INV_LN2 = 1 / Math.log(2);
+    private static final double LN2 = Math.log(2);
+    private static final double LN10 = Math.log(10);
+    private static final double SQRT2 = Math.sqrt(2);
+    private static final long SIGNIFICAND_MASK = 0x000FFFFFFFFFFFFFL;
+    private static final long ONE_BITS = Double.doubleToRawLongBits(1.0);
+    
+    private final String name;
+    private final int arity;
+    
+    MathFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+    
+    /** The name used in expressions. */
+    public String getName() {
+        return name;
+    }
+    
+    /** Number of arguments the function takes. */
+    public int arity() {
+        return arity;
+    }
+    
+    /** Returns the function with the given expression name, or null if there is none. */
+    public static MathFunction forName(String name) {
+        for (MathFunction function : VALUES) {
+            if (function.name.equals(name)) {
+                return function;
+            }
+        }
+        return null;
+    }
+    
+    public double apply(double x) {
+        switch (this) {
+            case LN:
+                return Math.log(x);
+            case LOG10:
+                return Math.log10(x);
+            case LOG2:
+                return log2(x);
+            case EXP:
+                return Math.exp(x);
+            case SQRT:
+                return Math.sqrt(x);
+            case SIN:
+                return Math.sin(x);
+            case COS:
+                return Math.cos(x);
+            case TAN:
+                return Math.tan(x);
+            case ASIN:
+                return Math.asin(x);
+            case ACOS:
+                return Math.acos(x);
+            case ATAN:
+                return Math.atan(x);
+            default:
+                throw wrongArity(1);
+        }
+    }
+    
+    public double apply(double x, double y) {
+        if (this != POW) {
+            throw wrongArity(2);
+        }
+        return Math.pow(x, y);
+    }
+    
+    /**
+     * Derivative at {@code x}, where {@code result} is the function's value
+     * there; several derivatives are cheapest in terms of it.
+     */
+    public double derivative(double x, double result) {
+        switch (this) {
+            case LN:
+                return 1 / x;
+            case LOG10:
+                return 1 / (x * LN10);
+            case LOG2:
+                return 1 / (x * LN2);
+            case EXP:
+                return result;
+            case SQRT:
+                return 0.5 / result;
+            case SIN:
+                return Math.cos(x);
+            case COS:
+                return -Math.sin(x);
+            case TAN:
+                return 1 + result * result;
+            case ASIN:
+                return 1 / Math.sqrt(1 - x * x);
+            case ACOS:
+                return -1 / Math.sqrt(1 - x * x);
+            case ATAN:
+                return 1 / (1 + x * x);
+            default:
+                throw wrongArity(1);
+        }
+    }
+    
+    /**
+     * Partial derivative with respect to argument 0 ({@code x}) or 1
+     * ({@code y}), where {@code result} is the function's value at (x, y).
+     */
+    public double derivative(int argument, double x, double y, double result) {
+        if (this != POW) {
+            throw wrongArity(2);
+        }
+        switch (argument) {
+            case 0:
+                // d/dx x^y = y * x^(y-1), taken as 0 for y = 0 even at x = 0
+                return y == 0 ? 0 : y * Math.pow(x, y - 1);
+            case 1:
+                // d/dy x^y = x^y * ln(x), taken as 0 where x^y is 0
+                return result == 0 ? 0 : result * Math.log(x);
+            default:
+                throw new IllegalArgumentException(name + " has no argument " + argument);
+        }
+    }
+    
+    /** Replaces {@code values[from..to)} with the function of each value. */
+    public void apply(double[] values, int from, int to) {
+        switch (this) {
+            case LN:
+                for (int i = from; i < to; i++) {
+                    values[i] = Math.log(values[i]);
+                }
+                break;
+            case LOG10:
+                for (int i = from; i < to; i++) {
+                    values[i] = Math.log10(values[i]);
+                }
+                break;
+            case LOG2:
+                for (int i = from; i < to; i++) {
+                    values[i] = log2(values[i]);
+                }
+                break;
+            case EXP:
+                for (int i = from; i < to; i++) {
+                    values[i] = Math.exp(values[i]);
+                }
+                break;
+            case SQRT:
+                for (int i = from; i < to; i++) {
+                    values[i] = Math.sqrt(values[i]);
+                }
+                break;
+            case SIN:
+                for (int i = from; i < to; i++) {
+                    values[i] = Math.sin(values[i]);
+                }
+                break;
+            case COS:
+                for (int i = from; i < to; i++) {
+                    values[i] = Math.cos(values[i]);
+                }
+                break;
+            case TAN:
+                for (int i = from; i < to; i++) {
+                    values[i] = Math.tan(values[i]);
+                }
+                break;
+            case ASIN:
+                for (int i = from; i < to; i++) {
+                    values[i] = Math.asin(values[i]);
+                }
+                break;
+            case ACOS:
+                for (int i = from; i < to; i++) {
+                    values[i] = Math.acos(values[i]);
+                }
+                break;
+            case ATAN:
+                for (int i = from; i < to; i++) {
+                    values[i] = Math.atan(values[i]);
+                }
+                break;
+            default:
+                throw wrongArity(1);
+        }
+    }
+    
+    /** Replaces {@code x[from..to)} with the function of each pair {@code x[i], y[i]}. */
+    public void apply(double[] x, double[] y, int from, int to) {
+        if (this != POW) {
+            throw wrongArity(2);
+        }
+        for (int i = from; i < to; i++) {
+            x[i] = Math.pow(x[i], y[i]);
+        }
+    }
+    
+    /**
+     * Base 2 logarithm with one {@code Math.log} call. The binary exponent is
+     * taken from the bits exactly, so powers of two give exact integers, and
+     * only the significand, scaled into [sqrt(1/2), sqrt(2)), goes through
+     * the logarithm.
+     */
+    public static double log2(double x) {
+        int exponent = Math.getExponent(x);
+        if (x <= 0 || exponent < Double.MIN_EXPONENT || exponent > Double.MAX_EXPONENT) {
+            // Zero, negatives, subnormals, infinity and NaN
+            return Math.log(x) * INV_LN2;
+        }
+        long bits = Double.doubleToRawLongBits(x);
+        if ((bits & SIGNIFICAND_MASK) == 0) {
+            return exponent;
+        }
+        double significand = Double.longBitsToDouble((bits & SIGNIFICAND_MASK) | ONE_BITS);
+        if (significand > SQRT2) {
+            significand *= 0.5;
+            exponent++;
+        }
+        return exponent + Math.log(significand) * INV_LN2;
+    }
+    
+    private IllegalArgumentException wrongArity(int given) {
+        return new IllegalArgumentException(name + " takes " + arity + " argument"
+            + (arity == 1 ? "" : "s") + ", not " + given);
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+}
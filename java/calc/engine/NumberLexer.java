@@ -0,0 +1,115 @@
+package calc.engine;
+
+/**
+ * Scans unsigned decimal literals ({@code 12}, {@code 3.5}, {@code .5},
+ * {@code 7.}) straight from the source text.
+ *
+ * <p>Literals whose digits fit in a double's 53-bit significand and have at
+ * most 22 fraction digits are converted exactly as {@code mantissa / 10^k},
+ * which is correctly rounded because both operands are exact. Only longer
+ * literals fall back to {@link Double#parseDouble}. Malformed literals such
+ * as {@code 1.2.3} or a lone {@code .} are rejected while scanning.
+ *
+ * <p>The exact decimal value is also kept as an unscaled {@code long} and a
+ * scale when the literal has at most 18 significant digits, for
+ * {@link DecimalExpression}.
+ *
+ * <p>Instances keep the last scanned value and are not thread-safe; reuse one
+ * per thread or per parse.
+ */
+public final class NumberLexer {
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+        1e21, 1e22
+    };
+    
+    private double value;
+    private long unscaled;
+    private int scale;
+    private boolean longExact;
+    
+    /** Value of the literal most recently returned by {@link #scan}. */
+    public double value() {
+        return value;
+    }
+    
+    /** Whether {@link #unscaled()} and {@link #scale()} hold the literal exactly. */
+    public boolean isLongExact() {
+        return longExact;
+    }
+    
+    /** The literal's digits without the decimal point, if {@link #isLongExact()}. */
+    public long unscaled() {
+        return unscaled;
+    }
+    
+    /** Number of digits after the decimal point. */
+    public int scale() {
+        return scale;
+    }
+    
+    public static boolean isNumberStart(int c) {
+        return (c >= '0' && c <= '9') || c == '.';
+    }
+    
+    /**
+     * Scans the literal starting at {@code start} and returns the index just
+     * after it. The value is then available from {@link #value()}.
+     *
+     * @throws ExpressionException if the literal is malformed
+     */
+    public int scan(CharSequence text, int start) {
+        int length = text.length();
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean sawDigit = false;
+        boolean sawDot = false;
+        int i = start;
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sawDigit = true;
+                if (sawDot) {
+                    fractionDigits++;
+                }
+                // Leading zeros do not change the mantissa
+                if (mantissa == 0 && c == '0') {
+                    continue;
+                }
+                if (++digits <= 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                }
+            } else if (c == '.') {
+                if (sawDot) {
+                    throw malformed(text, start);
+                }
+                sawDot = true;
+            } else {
+                break;
+            }
+        }
+        if (!sawDigit) {
+            throw malformed(text, start);
+        }
+        unscaled = mantissa;
+        scale = fractionDigits;
+        longExact = digits <= 18;
+        if (longExact && mantissa < MAX_EXACT_MANTISSA && fractionDigits < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[fractionDigits];
+        } else {
+            value = Double.parseDouble(text.subSequence(start, i).toString());
+        }
+        return i;
+    }
+    
+    private static ExpressionException malformed(CharSequence text, int start) {
+        int end = start;
+        while (end < text.length() && isNumberStart(text.charAt(end))) {
+            end++;
+        }
+        return new ExpressionException("Malformed number: " + text.subSequence(start, end), start);
+    }
+}
@@ -0,0 +1,263 @@
+package calc.engine;
+
+import java.util.Arrays;
+
+// Peephole pass over a compiled postfix program. Every rewrite gives results
+// identical to the original program under IEEE 754, including signed zeros,
+// infinities and NaN, so nothing is reassociated and x + 0 or x * 0 are kept.
+final class ProgramOptimizer {
+    private final int[] source;
+    private final double[] sourceConstants;
+    
+    private int[] code;
+    private int codeLength;
+    private double[] constants;
+    private int constantCount;
+    
+    // Per operand on the simulated stack: where its code and constants start
+    // in the output, and whether it is a single constant
+    private int[] codeStart;
+    private int[] constantStart;
+    private boolean[] constant;
+    private int sp = -1;
+    
+    private ProgramOptimizer(CompiledExpression program) {
+        this.source = program.code();
+        this.sourceConstants = program.constants();
+        this.code = new int[source.length];
+        this.constants = new double[Math.max(1, sourceConstants.length)];
+        int stackSize = Math.max(1, program.maxStack());
+        this.codeStart = new int[stackSize];
+        this.constantStart = new int[stackSize];
+        this.constant = new boolean[stackSize];
+    }
+    
+    static CompiledExpression optimize(CompiledExpression program) {
+        return new ProgramOptimizer(program).run(program);
+    }
+    
+    private CompiledExpression run(CompiledExpression program) {
+        for (int word : source) {
+            int op = word & CompiledExpression.OPCODE_MASK;
+            switch (op) {
+                case CompiledExpression.PUSH:
+                    pushConstant(sourceConstants[word >>> CompiledExpression.OPERAND_SHIFT]);
+                    break;
+                case CompiledExpression.LOAD:
+                    push(false);
+                    emit(word);
+                    break;
+                case CompiledExpression.NEG:
+                    negate();
+                    break;
+                case CompiledExpression.CALL:
+                    call(word);
+                    break;
+                default:
+                    binary(op);
+            }
+        }
+        return new CompiledExpression(program.getSource(), program.variableNames(),
+            Arrays.copyOf(code, codeLength),
+            Arrays.copyOf(constants, constantCount),
+            maxDepth(), source.length - codeLength);
+    }
+    
+    // Operands dropped by the rewrites can lower the stack the program needs
+    private int maxDepth() {
+        int depth = 0;
+        int max = 0;
+        for (int pc = 0; pc < codeLength; pc++) {
+            int op = code[pc] & CompiledExpression.OPCODE_MASK;
+            if (op == CompiledExpression.PUSH || op == CompiledExpression.LOAD) {
+                max = Math.max(max, ++depth);
+            } else if (op == CompiledExpression.CALL) {
+                depth -= MathFunction.VALUES[code[pc] >>> CompiledExpression.OPERAND_SHIFT].arity() - 1;
+            } else if (op != CompiledExpression.NEG) {
+                depth--;
+            }
+        }
+        return max;
+    }
+    
+    private void negate() {
+        if (constant[sp]) {
+            double value = -constantValue(sp);
+            pop();
+            pushConstant(value);
+        } else if (endsWithNeg()) {
+            // -(-x) is x exactly, NaN and zeros included
+            codeLength--;
+        } else {
+            emit(CompiledExpression.NEG);
+        }
+    }
+    
+    private void call(int word) {
+        MathFunction function = MathFunction.VALUES[word >>> CompiledExpression.OPERAND_SHIFT];
+        if (function.arity() == 2) {
+            if (constant[sp - 1] && constant[sp]) {
+                double value = function.apply(constantValue(sp - 1), constantValue(sp));
+                pop();
+                pop();
+                pushConstant(value);
+                return;
+            }
+            sp--;
+        } else if (constant[sp]) {
+            double value = function.apply(constantValue(sp));
+            pop();
+            pushConstant(value);
+            return;
+        }
+        emit(word);
+        constant[sp] = false;
+    }
+    
+    private void binary(int op) {
+        int right = sp;
+        int left = sp - 1;
+        if (constant[left] && constant[right]) {
+            double value = apply(op, constantValue(left), constantValue(right));
+            pop();
+            pop();
+            pushConstant(value);
+            return;
+        }
+        if (constant[right]) {
+            double c = constantValue(right);
+            if (isRightIdentity(op, c)) {
+                pop();
+                return;
+            }
+            if (c == -1 && (op == CompiledExpression.MUL || op == CompiledExpression.DIV)) {
+                pop();
+                negate();
+                return;
+            }
+            if (op == CompiledExpression.DIV && hasExactReciprocal(c)) {
+                pop();
+                pushConstant(1 / c);
+                op = CompiledExpression.MUL;
+            }
+        } else if (constant[left] && isLeftIdentity(op, constantValue(left))) {
+            // Drop the constant in front of the right operand's code
+            int start = codeStart[left];
+            System.arraycopy(code, start + 1, code, start, codeLength - start - 1);
+            codeLength--;
+            System.arraycopy(constants, constantStart[left] + 1, constants, constantStart[left],
+                constantCount - constantStart[left] - 1);
+            constantCount--;
+            relocateTop(start, constantStart[left]);
+            return;
+        } else if (endsWithNeg() && (op == CompiledExpression.ADD || op == CompiledExpression.SUB)) {
+            // x + -y is x - y and x - -y is x + y by definition of subtraction
+            codeLength--;
+            op = op == CompiledExpression.ADD ? CompiledExpression.SUB : CompiledExpression.ADD;
+        }
+        emit(op);
+        sp--;
+        constant[sp] = false;
+    }
+    
+    // x * 1, x / 1, x - 0 and x + -0 return x unchanged; x + 0 does not
+    // (-0 + 0 is +0), so only the negative zero is an additive identity
+    private static boolean isRightIdentity(int op, double c) {
+        switch (op) {
+            case CompiledExpression.MUL:
+            case CompiledExpression.DIV:
+                return c == 1;
+            case CompiledExpression.ADD:
+                return isNegativeZero(c);
+            case CompiledExpression.SUB:
+                return isPositiveZero(c);
+            default:
+                return false;
+        }
+    }
+    
+    private static boolean isLeftIdentity(int op, double c) {
+        return op == CompiledExpression.MUL ? c == 1 : op == CompiledExpression.ADD && isNegativeZero(c);
+    }
+    
+    private static boolean isNegativeZero(double c) {
+        return Double.doubleToRawLongBits(c) == Long.MIN_VALUE;
+    }
+    
+    private static boolean isPositiveZero(double c) {
+        return Double.doubleToRawLongBits(c) == 0L;
+    }
+    
+    // Dividing by a power of two whose reciprocal is a normal double is the
+    // same correctly rounded operation as multiplying by that reciprocal
+    private static boolean hasExactReciprocal(double c) {
+        int exponent = Math.getExponent(c);
+        return (Double.doubleToRawLongBits(c) & 0xFFFFFFFFFFFFFL) == 0
+            && exponent >= Double.MIN_EXPONENT && exponent <= Double.MAX_EXPONENT
+            && -exponent >= Double.MIN_EXPONENT && -exponent <= Double.MAX_EXPONENT;
+    }
+    
+    private static double apply(int op, double a, double b) {
+        switch (op) {
+            case CompiledExpression.ADD:
+                return a + b;
+            case CompiledExpression.SUB:
+                return a - b;
+            case CompiledExpression.MUL:
+                return a * b;
+            case CompiledExpression.DIV:
+                return a / b;
+            default:
+                throw new IllegalStateException("Bad opcode: " + op);
+        }
+    }
+    
+    // The top operand's code is the tail of the output, so its last word is
+    // the instruction that produced it
+    private boolean endsWithNeg() {
+        return codeLength > codeStart[sp] && code[codeLength - 1] == CompiledExpression.NEG;
+    }
+    
+    private double constantValue(int index) {
+        return constants[constantStart[index]];
+    }
+    
+    // Moves the top operand down into the slot below after the slot's
+    // constant was removed, renumbering the PUSH operands it contains
+    private void relocateTop(int start, int firstConstant) {
+        for (int pc = start; pc < codeLength; pc++) {
+            if ((code[pc] & CompiledExpression.OPCODE_MASK) == CompiledExpression.PUSH) {
+                code[pc] -= 1 << CompiledExpression.OPERAND_SHIFT;
+            }
+        }
+        boolean topConstant = constant[sp];
+        sp--;
+        codeStart[sp] = start;
+        constantStart[sp] = firstConstant;
+        constant[sp] = topConstant;
+    }
+    
+    private void push(boolean isConstant) {
+        sp++;
+        codeStart[sp] = codeLength;
+        constantStart[sp] = constantCount;
+        constant[sp] = isConstant;
+    }
+    
+    // Discards the top operand along with its code and constants
+    private void pop() {
+        codeLength = codeStart[sp];
+        constantCount = constantStart[sp];
+        sp--;
+    }
+    
+    private void pushConstant(double value) {
+        push(true);
+        constants[constantCount] = value;
+        emit(CompiledExpression.PUSH | (constantCount++ << CompiledExpression.OPERAND_SHIFT));
+    }
+    
+    private void emit(int word) {
+        code[codeLength++] = word;
+    }
+}
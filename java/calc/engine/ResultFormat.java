@@ -0,0 +1,329 @@
+package calc.engine;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Turns results into text without {@code String.format}, which parses its
+ * pattern and builds a {@code Formatter} on every call. A format is immutable
+ * and can be shared across threads; the digits are worked out in per-thread
+ * buffers, so appending to a {@link StringBuilder} or {@link ByteBuffer}
+ * allocates nothing in all but rare cases.
+ *
+ * <p>With zero significant digits the shortest text that reads back as the
+ * same double is printed, laid out like {@link Double#toString} on Java 19
+ * and later. Otherwise the exact binary value is rounded half-up to the
+ * requested count, giving the text {@code "%.Ng"} gives for the value as a
+ * {@link BigDecimal}. ({@code "%.Ng"} on the double itself rounds decimal
+ * digits that were already rounded, and can be one off in the last place.)
+ * Rounding the shortest digits gives the same answer in almost every case;
+ * exact ties, subnormals and more than 15 digits go through BigDecimal.
+ */
+public final class ResultFormat {
+    
+    /** Where the decimal point goes. */
+    public enum Notation {
+        /** Positional for moderate magnitudes and scientific otherwise, like Double.toString and %g. */
+        GENERAL,
+        /** Always positional, such as {@code 1234567.0}. */
+        PLAIN,
+        /** One integer digit and an exponent, such as {@code 1.234567E6}. */
+        SCIENTIFIC,
+        /** One to three integer digits and an exponent that is a multiple of three, such as {@code 1.234567E6} or {@code 12.5E-3}. */
+        ENGINEERING
+    }
+    
+    /** Shortest round-trip text, identical to {@link Double#toString} on Java 19 and later. */
+    public static final ResultFormat SHORTEST = new ResultFormat(0, Notation.GENERAL, Locale.ROOT, false);
+    
+    private static final long[] POWERS_OF_TEN = new long[19];
+    // Shortest digits rounded to this many places or fewer are always correct
+    private static final int MAX_SHORTEST_PRECISION = 15;
+    
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+    
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+    
+    private final int significantDigits;
+    private final Notation notation;
+    private final char zeroDigit;
+    private final char decimalSeparator;
+    private final char groupingSeparator;
+    private final boolean grouping;
+    
+    /**
+     * Rounds to {@code significantDigits} in the default format locale,
+     * giving the same text as {@code String.format("%.<n>g", new BigDecimal(value))}.
+     */
+    public ResultFormat(int significantDigits) {
+        this(significantDigits, Notation.GENERAL, Locale.getDefault(Locale.Category.FORMAT), false);
+    }
+    
+    /**
+     * @param significantDigits digits to round to, or 0 for the shortest text
+     *        that reads back as the same double
+     * @param locale supplies the digits and the decimal and grouping separators
+     * @param grouping whether to separate thousands in the integer part
+     */
+    public ResultFormat(int significantDigits, Notation notation, Locale locale, boolean grouping) {
+        if (significantDigits < 0) {
+            throw new IllegalArgumentException("Significant digits must not be negative: " + significantDigits);
+        }
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+        this.significantDigits = significantDigits;
+        this.notation = notation;
+        this.zeroDigit = symbols.getZeroDigit();
+        this.decimalSeparator = symbols.getDecimalSeparator();
+        this.groupingSeparator = symbols.getGroupingSeparator();
+        this.grouping = grouping;
+    }
+    
+    public String format(double value) {
+        Scratch scratch = SCRATCH.get();
+        layout(value, scratch);
+        return new String(scratch.text, 0, scratch.length);
+    }
+    
+    /** Appends the formatted value to {@code out} and returns it. */
+    public StringBuilder format(double value, StringBuilder out) {
+        Scratch scratch = SCRATCH.get();
+        layout(value, scratch);
+        return out.append(scratch.text, 0, scratch.length);
+    }
+    
+    /**
+     * Writes the formatted value to {@code out} as UTF-8 and returns it.
+     *
+     * @throws java.nio.BufferOverflowException if {@code out} runs out of room
+     */
+    public ByteBuffer format(double value, ByteBuffer out) {
+        Scratch scratch = SCRATCH.get();
+        layout(value, scratch);
+        char[] text = scratch.text;
+        for (int i = 0; i < scratch.length; i++) {
+            char c = text[i];
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | c >> 6));
+                out.put((byte) (0x80 | c & 0x3F));
+            } else {
+                out.put((byte) (0xE0 | c >> 12));
+                out.put((byte) (0x80 | c >> 6 & 0x3F));
+                out.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        return out;
+    }
+    
+    private void layout(double value, Scratch scratch) {
+        scratch.length = 0;
+        if (Double.isNaN(value)) {
+            scratch.put("NaN");
+            return;
+        }
+        if (Double.doubleToRawLongBits(value) < 0) {
+            scratch.put('-');
+            value = -value;
+        }
+        if (value == Double.POSITIVE_INFINITY) {
+            scratch.put("Infinity");
+            return;
+        }
+    
+        // Leading digits of the value and the power of ten of the first one
+        long digits = 0;
+        int count = 1;
+        int exponent = 0;
+        if (value != 0) {
+            ShortestDigits shortest = scratch.shortest;
+            shortest.convert(value);
+            digits = shortest.significand();
+            count = shortest.length();
+            exponent = shortest.exponent() + count - 1;
+            if (significantDigits > 0 && needsExactRounding(value, digits, count)) {
+                roundExactly(value, scratch);
+                layoutDigits(scratch, scratch.exponent);
+                return;
+            }
+            if (significantDigits > 0 && count > significantDigits) {
+                long divisor = POWERS_OF_TEN[count - significantDigits];
+                long rounded = digits / divisor;
+                if (digits % divisor * 2 >= divisor) {
+                    rounded++;
+                }
+                count = significantDigits;
+                if (rounded == POWERS_OF_TEN[count]) {
+                    rounded /= 10;
+                    exponent++;
+                }
+                digits = rounded;
+            }
+        }
+        char[] chars = scratch.digits;
+        for (int i = count - 1; i >= 0; i--) {
+            chars[i] = (char) (zeroDigit + digits % 10);
+            digits /= 10;
+        }
+        scratch.count = count;
+        layoutDigits(scratch, exponent);
+    }
+    
+    // Rounding the shortest digits to the requested count matches rounding
+    // the exact value, except when they sit exactly on a tie, which the
+    // exact value may be either side of. Padding them with zeros is exact
+    // only up to 15 digits, and not at all for subnormals, which carry
+    // fewer bits.
+    private boolean needsExactRounding(double value, long digits, int count) {
+        if (count > significantDigits) {
+            long divisor = POWERS_OF_TEN[count - significantDigits];
+            return digits % divisor * 2 == divisor;
+        }
+        return significantDigits > MAX_SHORTEST_PRECISION || value < Double.MIN_NORMAL;
+    }
+    
+    // Rare, so left to BigDecimal: rounds the exact binary value half-up,
+    // as Formatter does, into the scratch digits
+    private void roundExactly(double value, Scratch scratch) {
+        BigDecimal rounded = new BigDecimal(value).round(new MathContext(significantDigits, RoundingMode.HALF_UP));
+        String unscaled = rounded.unscaledValue().toString();
+        int count = unscaled.length();
+        if (scratch.digits.length < count) {
+            scratch.digits = new char[count];
+        }
+        for (int i = 0; i < count; i++) {
+            scratch.digits[i] = (char) (zeroDigit + unscaled.charAt(i) - '0');
+        }
+        scratch.count = count;
+        scratch.exponent = count - 1 - rounded.scale();
+    }
+    
+    // Lays out the digits in the scratch, the first of which is worth 10^exponent
+    private void layoutDigits(Scratch scratch, int exponent) {
+    
+        boolean shortestMode = significantDigits == 0;
+        boolean plain;
+        switch (notation) {
+            case PLAIN:
+                plain = true;
+                break;
+            case GENERAL:
+                plain = shortestMode ? exponent >= -3 && exponent < 7 : exponent >= -4 && exponent < significantDigits;
+                break;
+            default:
+                plain = false;
+        }
+        if (plain) {
+            writePlain(scratch, exponent);
+        } else {
+            int integerDigits = notation == Notation.ENGINEERING ? Math.floorMod(exponent, 3) + 1 : 1;
+            writeScientific(scratch, exponent, integerDigits);
+        }
+    }
+    
+    private void writePlain(Scratch scratch, int exponent) {
+        if (exponent < 0) {
+            scratch.put(zeroDigit);
+        } else {
+            for (int i = 0; i <= exponent; i++) {
+                scratch.put(digit(scratch, i));
+                if (grouping && i < exponent && (exponent - i) % 3 == 0) {
+                    scratch.put(groupingSeparator);
+                }
+            }
+        }
+        writeFraction(scratch, exponent + 1, fractionDigits(scratch, exponent + 1));
+    }
+    
+    private void writeScientific(Scratch scratch, int exponent, int integerDigits) {
+        for (int i = 0; i < integerDigits; i++) {
+            scratch.put(digit(scratch, i));
+        }
+        writeFraction(scratch, integerDigits, fractionDigits(scratch, integerDigits));
+    
+        int power = exponent - integerDigits + 1;
+        if (significantDigits == 0) {
+            // Double.toString style: 1.0E10, 1.0E-5
+            scratch.put('E');
+            if (power < 0) {
+                scratch.put('-');
+            }
+            writeExponent(scratch, Math.abs(power), 1);
+        } else {
+            // %g style: 1.00000e+10, 1.00000e-05
+            scratch.put('e');
+            scratch.put(power < 0 ? '-' : '+');
+            writeExponent(scratch, Math.abs(power), 2);
+        }
+    }
+    
+    // Digits after the point when the first `integerDigits` digits come
+    // before it: shortest text keeps at least one, like "5.0"
+    private int fractionDigits(Scratch scratch, int integerDigits) {
+        if (significantDigits == 0) {
+            return Math.max(1, scratch.count - integerDigits);
+        }
+        return Math.max(0, significantDigits - integerDigits);
+    }
+    
+    // Writes digits from index `from` on, where negative indexes are the
+    // zeros between the point and the first digit
+    private void writeFraction(Scratch scratch, int from, int fractionDigits) {
+        if (fractionDigits == 0) {
+            return;
+        }
+        scratch.put(decimalSeparator);
+        for (int i = from; i < from + fractionDigits; i++) {
+            scratch.put(i < 0 ? zeroDigit : digit(scratch, i));
+        }
+    }
+    
+    private void writeExponent(Scratch scratch, int power, int minDigits) {
+        int width = power >= 100 ? 3 : power >= 10 ? 2 : 1;
+        for (int i = width; i < minDigits; i++) {
+            scratch.put(zeroDigit);
+        }
+        for (int divisor = width == 3 ? 100 : width == 2 ? 10 : 1; divisor > 0; divisor /= 10) {
+            scratch.put((char) (zeroDigit + power / divisor % 10));
+        }
+    }
+    
+    // Digits past the significant ones are zeros
+    private char digit(Scratch scratch, int index) {
+        return index < scratch.count ? scratch.digits[index] : zeroDigit;
+    }
+    
+    // Per-thread working state: the digits of the value being formatted and
+    // the text built from them
+    private static final class Scratch {
+        final ShortestDigits shortest = new ShortestDigits();
+        char[] digits = new char[17];
+        int count;
+        int exponent;
+        char[] text = new char[32];
+        int length;
+    
+        void put(char c) {
+            if (length == text.length) {
+                text = Arrays.copyOf(text, length * 2);
+            }
+            text[length++] = c;
+        }
+    
+        void put(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                put(s.charAt(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package calc.engine;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+/**
+ * Finds the shortest decimal that reads back as a given double, using Ulf
+ * Adams' Ryu algorithm: the rounding interval around the value is scaled by
+ * a power of ten with 128-bit fixed-point multiplications, then digits are
+ * removed while both ends of the interval still agree. The result is the
+ * same digits {@link Double#toString} prints on Java 19 and later, without
+ * allocating.
+ *
+ * <p>Instances keep the last converted value and are not thread-safe; reuse
+ * one per thread.
+ */
+final class ShortestDigits {
+    private static final int MANTISSA_BITS = 52;
+    private static final long MANTISSA_MASK = (1L << MANTISSA_BITS) - 1;
+    private static final int EXPONENT_MASK = (1 << 11) - 1;
+    private static final int BIAS = 1023;
+    
+    // 5^i and 2^k / 5^q as 125-bit fixed point, stored as (low, high) pairs
+    private static final int POW5_BITCOUNT = 125;
+    private static final int POW5_INV_BITCOUNT = 125;
+    private static final int POW5_TABLE_SIZE = 326;
+    private static final int POW5_INV_TABLE_SIZE = 342;
+    private static final long[] POW5 = new long[2 * POW5_TABLE_SIZE];
+    private static final long[] POW5_INV = new long[2 * POW5_INV_TABLE_SIZE];
+    
+    static {
+        BigInteger low = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        for (int i = 0; i < POW5_INV_TABLE_SIZE; i++) {
+            BigInteger pow = BigInteger.valueOf(5).pow(i);
+            int bits = pow.bitLength();
+            if (i < POW5_TABLE_SIZE) {
+                BigInteger split = pow.shiftLeft(POW5_BITCOUNT - bits);
+                POW5[2 * i] = split.and(low).longValue();
+                POW5[2 * i + 1] = split.shiftRight(64).longValue();
+            }
+            BigInteger inverse = BigInteger.ONE.shiftLeft(bits - 1 + POW5_INV_BITCOUNT).divide(pow).add(BigInteger.ONE);
+            POW5_INV[2 * i] = inverse.and(low).longValue();
+            POW5_INV[2 * i + 1] = inverse.shiftRight(64).longValue();
+        }
+    }
+    
+    private long significand;
+    private int exponent;
+    private int length;
+    
+    /** Digits of the last converted value, without trailing zeros. */
+    long significand() {
+        return significand;
+    }
+    
+    /** Power of ten to scale {@link #significand()} by. */
+    int exponent() {
+        return exponent;
+    }
+    
+    /** Number of digits in {@link #significand()}. */
+    int length() {
+        return length;
+    }
+    
+    /** Converts a finite, positive value. */
+    void convert(double value) {
+        if (value < 0x1p53 && value == (long) value) {
+            // Integers below 2^53 are exact and no shorter decimal lies
+            // within half an ulp of them
+            set((long) value, 0);
+            return;
+        }
+        long bits = Double.doubleToRawLongBits(value);
+        long ieeeMantissa = bits & MANTISSA_MASK;
+        int ieeeExponent = (int) (bits >>> MANTISSA_BITS) & EXPONENT_MASK;
+    
+        // The value is m2 * 2^e2, with two extra bits to place the interval
+        // ends halfway to the neighbouring doubles
+        int e2;
+        long m2;
+        if (ieeeExponent == 0) {
+            e2 = 1 - BIAS - MANTISSA_BITS - 2;
+            m2 = ieeeMantissa;
+        } else {
+            e2 = ieeeExponent - BIAS - MANTISSA_BITS - 2;
+            m2 = (1L << MANTISSA_BITS) | ieeeMantissa;
+        }
+        boolean acceptBounds = (m2 & 1) == 0;
+        long mv = 4 * m2;
+        // The gap below is half as wide at a power of two
+        int mmShift = ieeeMantissa != 0 || ieeeExponent <= 1 ? 1 : 0;
+    
+        long vr;
+        long vp;
+        long vm;
+        int e10;
+        boolean vmIsTrailingZeros = false;
+        boolean vrIsTrailingZeros = false;
+        if (e2 >= 0) {
+            int q = log10Pow2(e2) - (e2 > 3 ? 1 : 0);
+            e10 = q;
+            int k = POW5_INV_BITCOUNT + pow5bits(q) - 1;
+            int i = -e2 + q + k;
+            vr = mulShift(mv, POW5_INV, q, i);
+            vp = mulShift(mv + 2, POW5_INV, q, i);
+            vm = mulShift(mv - 1 - mmShift, POW5_INV, q, i);
+            if (q <= 21) {
+                // Only these can have the removed digits all zero
+                if (mv % 5 == 0) {
+                    vrIsTrailingZeros = multipleOfPowerOf5(mv, q);
+                } else if (acceptBounds) {
+                    vmIsTrailingZeros = multipleOfPowerOf5(mv - 1 - mmShift, q);
+                } else if (multipleOfPowerOf5(mv + 2, q)) {
+                    vp--;
+                }
+            }
+        } else {
+            int q = log10Pow5(-e2) - (-e2 > 1 ? 1 : 0);
+            e10 = q + e2;
+            int i = -e2 - q;
+            int k = pow5bits(i) - POW5_BITCOUNT;
+            int j = q - k;
+            vr = mulShift(mv, POW5, i, j);
+            vp = mulShift(mv + 2, POW5, i, j);
+            vm = mulShift(mv - 1 - mmShift, POW5, i, j);
+            if (q <= 1) {
+                vrIsTrailingZeros = true;
+                if (acceptBounds) {
+                    vmIsTrailingZeros = mmShift == 1;
+                } else {
+                    vp--;
+                }
+            } else if (q < 63) {
+                vrIsTrailingZeros = (mv & ((1L << q) - 1)) == 0;
+            }
+        }
+    
+        int removed = 0;
+        int lastRemovedDigit = 0;
+        long output;
+        if (vmIsTrailingZeros || vrIsTrailingZeros) {
+            // Rare: an interval end or the value itself may be exact, which
+            // decides ties and whether the lower end is allowed
+            while (vp / 10 > vm / 10) {
+                vmIsTrailingZeros &= vm % 10 == 0;
+                vrIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = (int) (vr % 10);
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            if (vmIsTrailingZeros) {
+                while (vm % 10 == 0) {
+                    vrIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = (int) (vr % 10);
+                    vr /= 10;
+                    vp /= 10;
+                    vm /= 10;
+                    removed++;
+                }
+            }
+            if (vrIsTrailingZeros && lastRemovedDigit == 5 && vr % 2 == 0) {
+                // Exactly halfway: round to even
+                lastRemovedDigit = 4;
+            }
+            output = vr + ((vr == vm && (!acceptBounds || !vmIsTrailingZeros)) || lastRemovedDigit >= 5 ? 1 : 0);
+        } else {
+            boolean roundUp = false;
+            if (vp / 100 > vm / 100) {
+                roundUp = vr % 100 >= 50;
+                vr /= 100;
+                vp /= 100;
+                vm /= 100;
+                removed += 2;
+            }
+            while (vp / 10 > vm / 10) {
+                roundUp = vr % 10 >= 5;
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            output = vr + (vr == vm || roundUp ? 1 : 0);
+        }
+    
+        if (output < 10 && ieeeExponent == 0) {
+            // Double.toString never settles for one digit; for the few
+            // subnormals where that digit is inexact it prints the closest
+            // two-digit decimal instead
+            BigDecimal closest = new BigDecimal(value).round(new MathContext(2, RoundingMode.HALF_EVEN));
+            set(closest.unscaledValue().longValue(), -closest.scale());
+            return;
+        }
+        set(output, e10 + removed);
+    }
+    
+    private void set(long digits, int power) {
+        while (digits % 10 == 0 && digits != 0) {
+            digits /= 10;
+            power++;
+        }
+        significand = digits;
+        exponent = power;
+        int n = 1;
+        for (long rest = digits / 10; rest != 0; rest /= 10) {
+            n++;
+        }
+        length = n;
+    }
+    
+    // Bits in 5^e, for 0 <= e <= 3528
+    private static int pow5bits(int e) {
+        return ((e * 1217359) >>> 19) + 1;
+    }
+    
+    // floor(log10(2^e)) and floor(log10(5^e)), for 0 <= e <= 1650
+    private static int log10Pow2(int e) {
+        return (e * 78913) >>> 18;
+    }
+    
+    private static int log10Pow5(int e) {
+        return (e * 732923) >>> 20;
+    }
+    
+    private static boolean multipleOfPowerOf5(long value, int p) {
+        int count = 0;
+        while (value % 5 == 0) {
+            value /= 5;
+            count++;
+        }
+        return count >= p;
+    }
+    
+    // (m * table[index]) >> shift, where the table entry is 125 bits wide
+    private static long mulShift(long m, long[] table, int index, int shift) {
+        long tableLow = table[2 * index];
+        long tableHigh = table[2 * index + 1];
+        long low = multiplyHigh(m, tableLow);
+        long crossLow = m * tableHigh;
+        long sumLow = low + crossLow;
+        long sumHigh = multiplyHigh(m, tableHigh) + (Long.compareUnsigned(sumLow, low) < 0 ? 1 : 0);
+        int distance = shift - 64;
+        return (sumHigh << (64 - distance)) | (sumLow >>> distance);
+    }
+    
+    // High 64 bits of the unsigned 128-bit product
+    private static long multiplyHigh(long a, long b) {
+        long aLow = a & 0xFFFFFFFFL;
+        long aHigh = a >>> 32;
+        long bLow = b & 0xFFFFFFFFL;
+        long bHigh = b >>> 32;
+        long lowLow = aLow * bLow;
+        long highLow = aHigh * bLow;
+        long lowHigh = aLow * bHigh;
+        long cross = (lowLow >>> 32) + (highLow & 0xFFFFFFFFL) + lowHigh;
+        return (highLow >>> 32) + (cross >>> 32) + aHigh * bHigh;
+    }
+}
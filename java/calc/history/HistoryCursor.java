@@ -0,0 +1,136 @@
+package calc.history;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Forward-only reader over a {@link HistoryLog}. The cursor points at one
+ * entry at a time and reads its numeric fields straight from the mapped
+ * file, so scanning does not allocate; the expression text is decoded only
+ * when asked for. A cursor also sees entries appended after it was created.
+ * Cursors are not thread-safe.
+ */
+public final class HistoryCursor {
+    private static final String[] NO_VARIABLES = new String[0];
+    
+    private final HistoryLog log;
+    private final long fromMillis;
+    private long next;
+    
+    private ByteBuffer region;
+    private long regionIndex = -1;
+    private int offset;
+    private int textLength;
+    private int variableCount;
+    private long timestamp;
+    private double result;
+    
+    // Decoded text of the current entry, filled in on first use
+    private byte[] text = new byte[256];
+    private String expression;
+    private String[] variables;
+    
+    HistoryCursor(HistoryLog log, long start, long fromMillis) {
+        this.log = log;
+        this.next = start;
+        this.fromMillis = fromMillis;
+    }
+    
+    /** Moves to the next entry, returning false at the end of the log. */
+    public boolean next() {
+        while (next < log.end()) {
+            long index = next / HistoryLog.REGION_SIZE;
+            if (index != regionIndex) {
+                region = log.regionForRead(next);
+                regionIndex = index;
+            }
+            int at = (int) (next % HistoryLog.REGION_SIZE);
+            int length = HistoryLog.REGION_SIZE - at >= 4 ? region.getInt(at) : HistoryLog.REGION_END;
+            if (length == HistoryLog.REGION_END) {
+                next += HistoryLog.REGION_SIZE - at;
+                continue;
+            }
+            next += length;
+            long time = region.getLong(at + 8);
+            if (time < fromMillis) {
+                continue;
+            }
+            offset = at;
+            textLength = region.getInt(at + 4);
+            timestamp = time;
+            result = region.getDouble(at + 16);
+            variableCount = region.getShort(at + 24) & 0xFFFF;
+            expression = null;
+            variables = null;
+            return true;
+        }
+        return false;
+    }
+    
+    public long timestamp() {
+        return timestamp;
+    }
+    
+    public double result() {
+        return result;
+    }
+    
+    public int variableCount() {
+        return variableCount;
+    }
+    
+    public double binding(int slot) {
+        if (slot < 0 || slot >= variableCount) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " of " + variableCount);
+        }
+        return region.getDouble(offset + HistoryLog.HEADER_SIZE + 8 * slot);
+    }
+    
+    /** Copies the bindings of the current entry into {@code into}. */
+    public void bindings(double[] into) {
+        for (int slot = 0; slot < variableCount; slot++) {
+            into[slot] = region.getDouble(offset + HistoryLog.HEADER_SIZE + 8 * slot);
+        }
+    }
+    
+    public String expression() {
+        decodeText();
+        return expression;
+    }
+    
+    /** Variable names of the current entry in slot order. */
+    public String[] variables() {
+        decodeText();
+        return variables.length == 0 ? variables : variables.clone();
+    }
+    
+    private void decodeText() {
+        if (expression != null) {
+            return;
+        }
+        if (text.length < textLength) {
+            text = new byte[Math.max(textLength, text.length * 2)];
+        }
+        ByteBuffer source = region.duplicate();
+        source.position(offset + HistoryLog.HEADER_SIZE + 8 * variableCount);
+        source.get(text, 0, textLength);
+        String decoded = new String(text, 0, textLength, StandardCharsets.UTF_8);
+        if (variableCount == 0) {
+            expression = decoded;
+            variables = NO_VARIABLES;
+            return;
+        }
+        List<String> parts = new ArrayList<>(variableCount + 1);
+        int start = 0;
+        for (int i = 0; i <= decoded.length(); i++) {
+            if (i == decoded.length() || decoded.charAt(i) == '\0') {
+                parts.add(decoded.substring(start, i));
+                start = i + 1;
+            }
+        }
+        expression = parts.get(0);
+        variables = parts.subList(1, parts.size()).toArray(new String[0]);
+    }
+}
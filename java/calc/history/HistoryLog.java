@@ -0,0 +1,385 @@
+package calc.history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log of evaluated expressions: the expression, its variable
+ * names and bindings, the result and a timestamp. Records are written into
+ * memory-mapped regions of the file, so appending copies bytes into the page
+ * cache without allocating.
+ *
+ * <p>Appends are made durable in groups: {@link #commit()} forces everything
+ * written so far to disk, and when a commit interval is given a background
+ * thread commits on that schedule. Entries appended after the last commit
+ * may be lost in a crash; entries before it are not.
+ *
+ * <p>Every {@value #INDEX_INTERVAL}th record is also noted in a small
+ * {@code .idx} file next to the log, so {@link #read(long)} can seek by time
+ * without scanning from the start. Timestamps never go backwards within a
+ * log. One instance appends to a file at a time; any number of cursors may
+ * read while it does. A log opened with {@link #openReadOnly(Path)} maps the
+ * file read-only and never changes it, so it can be checked while another
+ * process appends.
+ *
+ * <pre>
+ * record: int length, int textLength, long timestamp, double result,
+ *         short variableCount, double[variableCount] bindings,
+ *         UTF-8 text: expression, then '\0' and each variable name
+ * </pre>
+ */
+public final class HistoryLog implements Closeable {
+    /** Size of each mapped region; a record never spans two regions. */
+    public static final int REGION_SIZE = 64 << 20;
+    static final int INDEX_INTERVAL = 1024;
+    
+    static final int HEADER_SIZE = 26;
+    // Marks the unused tail of a region whose next record did not fit
+    static final int REGION_END = -1;
+    
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(16);
+    private final ScheduledExecutorService committer;
+    private final boolean readOnly;
+    
+    private long[] indexTimes = new long[64];
+    private long[] indexPositions = new long[64];
+    private int indexCount;
+    
+    private long position;
+    private long count;
+    private long lastTimestamp;
+    private int firstDirtyRegion;
+    // End of the fully written records, published for readers
+    private volatile long end;
+    
+    private HistoryLog(Path path, long commitIntervalMillis, boolean readOnly) throws IOException {
+        this.readOnly = readOnly;
+        if (readOnly) {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            // A log without an index is scanned from the start
+            Path index = indexPath(path);
+            indexChannel = Files.exists(index) ? FileChannel.open(index, StandardOpenOption.READ) : null;
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            indexChannel = FileChannel.open(indexPath(path), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            closeChannels();
+            throw e;
+        }
+        if (commitIntervalMillis > 0 && !readOnly) {
+            committer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "history-commit");
+                thread.setDaemon(true);
+                return thread;
+            });
+            committer.scheduleWithFixedDelay(this::commitQuietly,
+                commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            committer = null;
+        }
+    }
+    
+    /** Opens or creates a log that is committed only by calls to {@link #commit()}. */
+    public static HistoryLog open(Path path) throws IOException {
+        return new HistoryLog(path, 0, false);
+    }
+    
+    /** Opens or creates a log that a background thread commits every {@code commitIntervalMillis}. */
+    public static HistoryLog open(Path path, long commitIntervalMillis) throws IOException {
+        return new HistoryLog(path, commitIntervalMillis, false);
+    }
+    
+    /**
+     * Opens an existing log for reading only. Neither the log nor its index
+     * is written, and entries appended by another writer after this call are
+     * not seen.
+     */
+    public static HistoryLog openReadOnly(Path path) throws IOException {
+        return new HistoryLog(path, 0, true);
+    }
+    
+    static Path indexPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".idx");
+    }
+    
+    /** Appends an entry without variables, timestamped now. */
+    public void append(CharSequence expression, double result) {
+        append(expression, null, null, result, System.currentTimeMillis());
+    }
+    
+    /**
+     * Appends an entry. {@code variables} and {@code bindings} may be null
+     * for an expression without variables.
+     *
+     * @throws IllegalArgumentException if the entry is larger than a region
+     */
+    public synchronized void append(CharSequence expression, String[] variables, double[] bindings,
+                                    double result, long timestamp) {
+        if (readOnly) {
+            throw new IllegalStateException("History log is open read-only");
+        }
+        int variableCount = variables == null ? 0 : variables.length;
+        if (variableCount > 0 && (bindings == null || bindings.length < variableCount)) {
+            throw new IllegalArgumentException("Expected " + variableCount + " bindings");
+        }
+        if (variableCount > 0xFFFF) {
+            throw new IllegalArgumentException("Too many variables: " + variableCount);
+        }
+        long textLength = Utf8.length(expression);
+        for (int i = 0; i < variableCount; i++) {
+            textLength += 1 + Utf8.length(variables[i]);
+        }
+        long length = HEADER_SIZE + 8L * variableCount + textLength;
+        if (length > REGION_SIZE - 4) {
+            throw new IllegalArgumentException("History entry too large: " + length + " bytes");
+        }
+        
+        MappedByteBuffer region = regionFor(length);
+        int start = (int) (position % REGION_SIZE);
+        region.position(start + 4);
+        region.putInt((int) textLength);
+        // Keep the log in time order even if the clock steps back
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+        region.putLong(lastTimestamp);
+        region.putDouble(result);
+        region.putShort((short) variableCount);
+        for (int i = 0; i < variableCount; i++) {
+            region.putDouble(bindings[i]);
+        }
+        Utf8.put(region, expression);
+        for (int i = 0; i < variableCount; i++) {
+            region.put((byte) 0);
+            Utf8.put(region, variables[i]);
+        }
+        // Zero the next length, in case stale bytes follow a recovered end
+        if (start + length + 4 <= REGION_SIZE) {
+            region.putInt(start + (int) length, 0);
+        }
+        // The length goes in last, so a torn record reads as the end of the log
+        region.putInt(start, (int) length);
+        
+        if (count % INDEX_INTERVAL == 0) {
+            addIndexEntry(lastTimestamp, position);
+        }
+        count++;
+        position += length;
+        end = position;
+    }
+    
+    // Returns the region the next record of the given length goes into,
+    // moving to a fresh region when it does not fit in the current one
+    private MappedByteBuffer regionFor(long length) {
+        int offset = (int) (position % REGION_SIZE);
+        if (REGION_SIZE - offset < length) {
+            if (REGION_SIZE - offset >= 4) {
+                region(position).putInt(offset, REGION_END);
+            }
+            position += REGION_SIZE - offset;
+        }
+        return region(position);
+    }
+    
+    private MappedByteBuffer region(long at) {
+        int index = (int) (at / REGION_SIZE);
+        while (regions.size() <= index) {
+            try {
+                regions.add(map((long) regions.size() * REGION_SIZE));
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not map history region " + regions.size(), e);
+            }
+        }
+        return regions.get(index);
+    }
+    
+    // A read-only mapping cannot grow the file, so the last region only
+    // covers what is there
+    private MappedByteBuffer map(long start) throws IOException {
+        if (readOnly) {
+            long size = Math.max(0, Math.min(REGION_SIZE, channel.size() - start));
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+        return channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE);
+    }
+    
+    private void addIndexEntry(long timestamp, long at) {
+        if (indexCount == indexTimes.length) {
+            indexTimes = Arrays.copyOf(indexTimes, indexCount * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+        }
+        indexTimes[indexCount] = timestamp;
+        indexPositions[indexCount] = at;
+        indexEntry.clear();
+        indexEntry.putLong(timestamp).putLong(at).flip();
+        try {
+            while (indexEntry.hasRemaining()) {
+                indexChannel.write(indexEntry, 16L * indexCount + 16 - indexEntry.remaining());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write history index", e);
+        }
+        indexCount++;
+    }
+    
+    /** Forces all appended entries to disk. */
+    public void commit() throws IOException {
+        List<MappedByteBuffer> dirty;
+        synchronized (this) {
+            if (readOnly || regions.isEmpty()) {
+                return;
+            }
+            dirty = new ArrayList<>(regions.subList(firstDirtyRegion, regions.size()));
+            firstDirtyRegion = regions.size() - 1;
+        }
+        // Data before index, so a durable index entry never points past durable data
+        for (MappedByteBuffer region : dirty) {
+            region.force();
+        }
+        indexChannel.force(false);
+    }
+    
+    private void commitQuietly() {
+        try {
+            commit();
+        } catch (IOException | RuntimeException e) {
+            // Retried on the next tick; close() reports a lasting failure
+        }
+    }
+    
+    /** Number of entries in the log. */
+    public synchronized long size() {
+        return count;
+    }
+    
+    /** Reads every entry from the start of the log. */
+    public HistoryCursor read() {
+        return new HistoryCursor(this, 0, Long.MIN_VALUE);
+    }
+    
+    /** Reads the entries timestamped at or after {@code fromMillis}. */
+    public synchronized HistoryCursor read(long fromMillis) {
+        // Last indexed record strictly before the time; everything earlier can be skipped
+        int low = 0;
+        int high = indexCount - 1;
+        long start = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (indexTimes[middle] < fromMillis) {
+                start = indexPositions[middle];
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return new HistoryCursor(this, start, fromMillis);
+    }
+    
+    long end() {
+        return end;
+    }
+    
+    // Readers see each region through their own duplicate
+    synchronized ByteBuffer regionForRead(long at) {
+        return region(at).duplicate();
+    }
+    
+    // Finds the end of the log after a restart, starting from the last index
+    // entry that still points at a record with the indexed timestamp
+    private void recover() throws IOException {
+        long size = channel.size();
+        int entries = indexChannel == null ? 0 : (int) (indexChannel.size() / 16);
+        ByteBuffer buffer = ByteBuffer.allocate(16 * Math.max(entries, 1));
+        while (buffer.position() < 16 * entries && indexChannel.read(buffer, buffer.position()) > 0) {
+            // Keep reading until the whole index is in memory
+        }
+        buffer.flip();
+        indexTimes = new long[Math.max(64, entries)];
+        indexPositions = new long[indexTimes.length];
+        for (int i = 0; i < entries; i++) {
+            indexTimes[i] = buffer.getLong();
+            indexPositions[i] = buffer.getLong();
+        }
+        indexCount = entries;
+        while (indexCount > 0 && !recordAt(indexPositions[indexCount - 1], indexTimes[indexCount - 1], size)) {
+            indexCount--;
+        }
+        if (!readOnly) {
+            indexChannel.truncate(16L * indexCount);
+        }
+        
+        position = indexCount == 0 ? 0 : indexPositions[indexCount - 1];
+        count = indexCount == 0 ? 0 : (long) (indexCount - 1) * INDEX_INTERVAL;
+        while (position < size) {
+            MappedByteBuffer region = region(position);
+            int offset = (int) (position % REGION_SIZE);
+            // Only a read-only mapping can end before the region does
+            int available = region.capacity() - offset;
+            int length = REGION_SIZE - offset < 4 ? REGION_END : available >= 4 ? region.getInt(offset) : 0;
+            if (length == REGION_END) {
+                position += REGION_SIZE - offset;
+                continue;
+            }
+            if (length < HEADER_SIZE || length > available) {
+                break;
+            }
+            lastTimestamp = Math.max(lastTimestamp, region.getLong(offset + 8));
+            position += length;
+            count++;
+        }
+        end = readOnly ? Math.min(position, size) : position;
+        firstDirtyRegion = Math.max(0, regions.size() - 1);
+    }
+    
+    private boolean recordAt(long at, long timestamp, long size) {
+        if (at < 0 || at + HEADER_SIZE > size) {
+            return false;
+        }
+        MappedByteBuffer region = region(at);
+        int offset = (int) (at % REGION_SIZE);
+        return REGION_SIZE - offset >= HEADER_SIZE
+            && region.getInt(offset) >= HEADER_SIZE
+            && region.getLong(offset + 8) == timestamp;
+    }
+    
+    /** Commits and closes the log; a read-only log is only closed. */
+    @Override
+    public void close() throws IOException {
+        if (committer != null) {
+            committer.shutdown();
+        }
+        try {
+            commit();
+        } finally {
+            closeChannels();
+        }
+    }
+    
+    private void closeChannels() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (indexChannel != null) {
+                indexChannel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package calc.history;
+
+import calc.engine.CalculatorEngine;
+import calc.engine.CompiledExpression;
+import calc.engine.ExpressionCache;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Re-evaluates a history log against the current engine and compares each
+ * result with the one recorded, to catch regressions between versions.
+ * The log is opened read-only, so a live log can be checked as it is written.
+ *
+ * <pre>
+ * java Calculator --replay FILE [--from EPOCH_MILLIS] [--max-ulps N]
+ * </pre>
+ *
+ * <p>The exit status is 0 when every entry reproduces, 1 otherwise.
+ */
+public final class HistoryReplay {
+    private static final String USAGE =
+        "Usage: java Calculator --replay FILE [--from EPOCH_MILLIS] [--max-ulps N]";
+    
+    private HistoryReplay() {
+    }
+    
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+    
+    public static int run(String[] args) {
+        Path file = null;
+        long from = Long.MIN_VALUE;
+        long maxUlps = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--replay")) {
+                    continue;
+                } else if (args[i].equals("--from") && i + 1 < args.length) {
+                    from = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--max-ulps") && i + 1 < args.length) {
+                    maxUlps = Long.parseLong(args[++i]);
+                } else if (!args[i].startsWith("--") && file == null) {
+                    file = Paths.get(args[i]);
+                } else {
+                    System.err.println(USAGE);
+                    return 2;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        if (file == null || !Files.isRegularFile(file)) {
+            System.err.println(file == null ? USAGE : "Error: no such file " + file);
+            return 2;
+        }
+        try (HistoryLog log = HistoryLog.openReadOnly(file)) {
+            CalculatorEngine engine = new CalculatorEngine(new ExpressionCache(4096));
+            ReplayReport report = replay(log.read(from), engine, maxUlps);
+            System.out.println(report);
+            for (String sample : report.samples()) {
+                System.out.println("  " + sample);
+            }
+            return report.isClean() ? 0 : 1;
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+    
+    /**
+     * Evaluates every remaining entry of {@code cursor} with {@code engine}.
+     * A result counts as a mismatch when it is more than {@code maxUlps}
+     * units in the last place from the recorded one; NaN matches NaN.
+     */
+    public static ReplayReport replay(HistoryCursor cursor, CalculatorEngine engine, long maxUlps) {
+        ReplayReport report = new ReplayReport();
+        double[] bindings = new double[8];
+        while (cursor.next()) {
+            double value;
+            try {
+                int count = cursor.variableCount();
+                if (bindings.length < count) {
+                    bindings = new double[count];
+                }
+                cursor.bindings(bindings);
+                CompiledExpression compiled = count == 0
+                    ? engine.compile(cursor.expression())
+                    : engine.compile(cursor.expression(), cursor.variables());
+                value = compiled.evaluate(bindings);
+            } catch (RuntimeException e) {
+                report.error(cursor, e);
+                continue;
+            }
+            long ulps = ulpDistance(cursor.result(), value);
+            if (ulps <= maxUlps) {
+                report.match(ulps);
+            } else {
+                report.mismatch(cursor, value, ulps);
+            }
+        }
+        return report;
+    }
+    
+    /**
+     * Number of representable doubles between {@code a} and {@code b}: 0 when
+     * they are equal or both NaN, and Long.MAX_VALUE when only one is NaN.
+     */
+    public static long ulpDistance(double a, double b) {
+        if (Double.isNaN(a) || Double.isNaN(b)) {
+            return Double.isNaN(a) && Double.isNaN(b) ? 0 : Long.MAX_VALUE;
+        }
+        // Map the bits onto a line where adjacent doubles differ by one;
+        // both zeros land on 0
+        long x = Double.doubleToRawLongBits(a);
+        long y = Double.doubleToRawLongBits(b);
+        x = x < 0 ? Long.MIN_VALUE - x : x;
+        y = y < 0 ? Long.MIN_VALUE - y : y;
+        long distance = x - y;
+        // Opposite signs far apart can overflow
+        if ((x ^ y) < 0 && (x ^ distance) < 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.abs(distance);
+    }
+}
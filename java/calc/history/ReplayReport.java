@@ -0,0 +1,74 @@
+package calc.history;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Outcome of re-evaluating a history log with {@link HistoryReplay}. */
+public final class ReplayReport {
+    static final int MAX_SAMPLES = 20;
+    
+    private long entries;
+    private long mismatches;
+    private long errors;
+    private long maxUlps;
+    private final List<String> samples = new ArrayList<>();
+    
+    void match(long ulps) {
+        entries++;
+        maxUlps = Math.max(maxUlps, ulps);
+    }
+    
+    void mismatch(HistoryCursor entry, double value, long ulps) {
+        entries++;
+        mismatches++;
+        maxUlps = Math.max(maxUlps, ulps);
+        sample(entry, "expected " + entry.result() + " but got " + value + " (" + ulps + " ulps)");
+    }
+    
+    void error(HistoryCursor entry, RuntimeException e) {
+        entries++;
+        errors++;
+        sample(entry, "failed: " + e.getMessage());
+    }
+    
+    private void sample(HistoryCursor entry, String outcome) {
+        if (samples.size() < MAX_SAMPLES) {
+            samples.add(entry.timestamp() + " " + entry.expression() + ": " + outcome);
+        }
+    }
+    
+    public long entries() {
+        return entries;
+    }
+    
+    /** Entries whose result differs by more than the allowed ulps. */
+    public long mismatches() {
+        return mismatches;
+    }
+    
+    /** Entries that no longer evaluate at all. */
+    public long errors() {
+        return errors;
+    }
+    
+    /** Largest difference seen in units in the last place, within tolerance or not. */
+    public long maxUlps() {
+        return maxUlps;
+    }
+    
+    /** Descriptions of the first few mismatches and errors. */
+    public List<String> samples() {
+        return Collections.unmodifiableList(samples);
+    }
+    
+    public boolean isClean() {
+        return mismatches == 0 && errors == 0;
+    }
+    
+    @Override
+    public String toString() {
+        return "ReplayReport[entries=" + entries + ", mismatches=" + mismatches
+            + ", errors=" + errors + ", maxUlps=" + maxUlps + "]";
+    }
+}
@@ -0,0 +1,366 @@
+package calc.server;
+
+import calc.engine.CalculatorEngine;
+import calc.engine.EngineMetrics;
+import calc.engine.ExpressionCache;
+import calc.engine.FormulaSnapshot;
+import calc.engine.LogBase;
+import calc.units.UnitRegistry;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Serves expression evaluation, unit conversion and logarithms over HTTP
+ * using the JDK's built-in server. All endpoints take a JSON body with POST
+ * and answer in JSON; each accepts a single item or a batch:
+ *
+ * <pre>
+ * POST /evaluate  {"expression": "1+2"}  or  {"expressions": ["1+2", "3*4"]}
+ * POST /convert   {"value": 1, "from": "mi", "to": "ft"}  or  {"values": [...], ...}
+ * POST /log       {"value": 8, "base": "log2"}  or  {"values": [...], ...}
+ * GET  /metrics   counters and latency percentiles of the engine
+ * </pre>
+ *
+ * <p>Each request runs on its own virtual thread when the JDK has them
+ * (JDK 21+) and on a cached thread pool otherwise. At most
+ * {@code maxConcurrent} requests are handled at once; requests beyond that
+ * are answered with 503 straight away instead of queuing.
+ */
+public final class CalculatorServer {
+    private static final int MAX_BODY_BYTES = 16 << 20;
+    private static final String USAGE =
+        "Usage: java Calculator --serve [--port PORT] [--max-concurrent N] [--snapshot FILE]";
+    
+    private final EngineMetrics metrics = new EngineMetrics();
+    private final CalculatorEngine engine;
+    private final Semaphore permits;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    
+    public CalculatorServer(int port, int maxConcurrent) throws IOException {
+        this(port, maxConcurrent, null);
+    }
+    
+    /**
+     * Creates a server whose expressions are looked up in {@code snapshot}
+     * before they are compiled. The snapshot may be null.
+     */
+    public CalculatorServer(int port, int maxConcurrent, FormulaSnapshot snapshot) throws IOException {
+        this.engine = new CalculatorEngine(new ExpressionCache(4096, snapshot), metrics);
+        this.permits = new Semaphore(maxConcurrent);
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/evaluate", exchange -> handle(exchange, this::evaluate));
+        server.createContext("/convert", exchange -> handle(exchange, this::convert));
+        server.createContext("/log", exchange -> handle(exchange, this::logarithm));
+        server.createContext("/metrics", this::metrics);
+    }
+    
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+    
+    /** Starts a server from command line arguments and blocks while it runs. */
+    public static int run(String[] args) {
+        int port = 8080;
+        int maxConcurrent = 256;
+        Path snapshotPath = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--serve")) {
+                    continue;
+                } else if (args[i].equals("--port") && i + 1 < args.length) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--max-concurrent") && i + 1 < args.length) {
+                    maxConcurrent = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--snapshot") && i + 1 < args.length) {
+                    snapshotPath = Paths.get(args[++i]);
+                } else {
+                    System.err.println(USAGE);
+                    return 2;
+                }
+            }
+            FormulaSnapshot snapshot = snapshotPath == null ? null : FormulaSnapshot.open(snapshotPath);
+            CalculatorServer server = new CalculatorServer(port, maxConcurrent, snapshot);
+            server.getMetrics().register("server-" + server.getPort());
+            server.start();
+            System.err.println("Listening on port " + server.getPort());
+            Thread.currentThread().join();
+            return 0;
+        } catch (NumberFormatException e) {
+            System.err.println(USAGE);
+            return 2;
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            return 0;
+        }
+    }
+    
+    public void start() {
+        server.start();
+    }
+    
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+    
+    public EngineMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /** The port actually bound, useful when the server was created with port 0. */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    // Virtual threads are looked up reflectively so the code still builds
+    // and runs on JDK 8
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+    
+    private interface Endpoint {
+        void respond(Map<String, Object> request, StringBuilder response);
+    }
+    
+    private void handle(HttpExchange exchange, Endpoint endpoint) throws IOException {
+        try {
+            if (!permits.tryAcquire()) {
+                send(exchange, 503, error("Too many concurrent requests"));
+                return;
+            }
+            try {
+                if (!exchange.getRequestMethod().equals("POST")) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    send(exchange, 405, error("Use POST with a JSON body"));
+                    return;
+                }
+                String body = readBody(exchange.getRequestBody());
+                if (body == null) {
+                    send(exchange, 413, error("Request body too large"));
+                    return;
+                }
+                Object request = Json.parse(body);
+                if (!(request instanceof Map)) {
+                    throw new IllegalArgumentException("Expected a JSON object");
+                }
+                @SuppressWarnings("unchecked")
+                Map<String, Object> fields = (Map<String, Object>) request;
+                StringBuilder response = new StringBuilder();
+                endpoint.respond(fields, response);
+                send(exchange, 200, response);
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, error(e.getMessage()));
+            } finally {
+                permits.release();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    private void metrics(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                send(exchange, 405, error("Use GET"));
+                return;
+            }
+            StringBuilder response = new StringBuilder();
+            response.append("{\"enabled\":").append(metrics.isEnabled())
+                .append(",\"compiles\":").append(metrics.getCompileCount())
+                .append(",\"evaluations\":").append(metrics.getEvaluationCount())
+                .append(",\"errors\":").append(metrics.getErrorCount())
+                .append(",\"errorsByKind\":{");
+            boolean first = true;
+            for (Map.Entry<String, Long> entry : metrics.getErrorCounts().entrySet()) {
+                if (!first) {
+                    response.append(',');
+                }
+                first = false;
+                Json.appendString(response, entry.getKey()).append(':').append(entry.getValue());
+            }
+            response.append("},\"compileNanos\":{\"p50\":").append(metrics.getCompileLatencyMedian())
+                .append(",\"p99\":").append(metrics.getCompileLatency99thPercentile())
+                .append("},\"evaluateNanos\":{\"p50\":").append(metrics.getEvaluateLatencyMedian())
+                .append(",\"p99\":").append(metrics.getEvaluateLatency99thPercentile())
+                .append(",\"max\":").append(metrics.getEvaluateLatencyMax())
+                .append("},\"expressionLength\":{\"mean\":");
+            Json.appendNumber(response, metrics.getMeanExpressionLength())
+                .append(",\"p99\":").append(metrics.getExpressionLength99thPercentile())
+                .append("},\"cacheHitRate\":");
+            Json.appendNumber(response, metrics.getCacheHitRate()).append('}');
+            send(exchange, 200, response);
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    private void evaluate(Map<String, Object> request, StringBuilder response) {
+        if (request.containsKey("expressions")) {
+            response.append("{\"results\":[");
+            List<?> expressions = list(request, "expressions");
+            for (int i = 0; i < expressions.size(); i++) {
+                if (i > 0) {
+                    response.append(',');
+                }
+                Object expression = expressions.get(i);
+                if (expression instanceof String) {
+                    appendEvaluation(response, (String) expression);
+                } else {
+                    response.append(error("Expressions must be strings"));
+                }
+            }
+            response.append("]}");
+        } else {
+            appendEvaluation(response, string(request, "expression"));
+        }
+    }
+    
+    // Bad expressions are reported per item so one typo doesn't fail a batch
+    private void appendEvaluation(StringBuilder response, String expression) {
+        double value;
+        try {
+            value = engine.evaluate(expression);
+        } catch (RuntimeException e) {
+            response.append(error(e.getMessage()));
+            return;
+        }
+        Json.appendNumber(response.append("{\"value\":"), value).append('}');
+    }
+    
+    private void convert(Map<String, Object> request, StringBuilder response) {
+        UnitRegistry units = engine.getUnits();
+        int from = units.id(string(request, "from"));
+        int to = units.id(string(request, "to"));
+        if (request.containsKey("values")) {
+            List<?> values = list(request, "values");
+            double[] in = new double[values.size()];
+            for (int i = 0; i < in.length; i++) {
+                in[i] = number(values.get(i));
+            }
+            double[] out = new double[in.length];
+            units.convert(in, out, from, to);
+            appendValues(response, out);
+        } else {
+            Json.appendNumber(response.append("{\"value\":"),
+                units.convert(number(request.get("value")), from, to)).append('}');
+        }
+    }
+    
+    private void logarithm(Map<String, Object> request, StringBuilder response) {
+        LogBase base = logBase(request.containsKey("base") ? string(request, "base") : "ln");
+        if (request.containsKey("values")) {
+            List<?> values = list(request, "values");
+            double[] out = new double[values.size()];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = number(values.get(i));
+            }
+            engine.logarithm(out, out, base);
+            appendValues(response, out);
+        } else {
+            Json.appendNumber(response.append("{\"value\":"),
+                engine.logarithm(number(request.get("value")), base)).append('}');
+        }
+    }
+    
+    private static LogBase logBase(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "ln":
+            case "natural":
+                return LogBase.NATURAL;
+            case "log10":
+            case "base_10":
+                return LogBase.BASE_10;
+            case "log2":
+            case "base_2":
+                return LogBase.BASE_2;
+            default:
+                throw new IllegalArgumentException("Unknown logarithm base: " + name);
+        }
+    }
+    
+    private static void appendValues(StringBuilder response, double[] values) {
+        response.append("{\"values\":[");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                response.append(',');
+            }
+            Json.appendNumber(response, values[i]);
+        }
+        response.append("]}");
+    }
+    
+    private static String string(Map<String, Object> request, String field) {
+        Object value = request.get(field);
+        if (!(value instanceof String)) {
+            throw new IllegalArgumentException("Missing string field: " + field);
+        }
+        return (String) value;
+    }
+    
+    private static List<?> list(Map<String, Object> request, String field) {
+        Object value = request.get(field);
+        if (!(value instanceof List)) {
+            throw new IllegalArgumentException("Missing array field: " + field);
+        }
+        return (List<?>) value;
+    }
+    
+    private static double number(Object value) {
+        if (!(value instanceof Double)) {
+            throw new IllegalArgumentException("Expected a number but got " + value);
+        }
+        return (Double) value;
+    }
+    
+    private static StringBuilder error(String message) {
+        return Json.appendString(new StringBuilder("{\"error\":"), String.valueOf(message)).append('}');
+    }
+    
+    // Returns null if the body exceeds MAX_BODY_BYTES
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            body.write(buffer, 0, n);
+            if (body.size() > MAX_BODY_BYTES) {
+                return null;
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+    
+    private static void send(HttpExchange exchange, int status, CharSequence body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
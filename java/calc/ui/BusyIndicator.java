@@ -0,0 +1,41 @@
+package calc.ui;
+
+import javax.swing.JProgressBar;
+import javax.swing.Timer;
+
+/**
+ * Shows an indeterminate progress bar while background work is running,
+ * but only once it has run for longer than a short delay, so quick
+ * calculations do not make it flicker. Used on the Event Dispatch Thread only.
+ */
+public final class BusyIndicator {
+    private static final int DELAY_MILLIS = 300;
+    
+    private final JProgressBar bar = new JProgressBar();
+    private final Timer timer = new Timer(DELAY_MILLIS, e -> bar.setVisible(true));
+    private int running;
+    
+    public BusyIndicator() {
+        bar.setIndeterminate(true);
+        bar.setVisible(false);
+        timer.setRepeats(false);
+    }
+    
+    /** The component to place in the window. */
+    public JProgressBar getComponent() {
+        return bar;
+    }
+    
+    void started() {
+        if (running++ == 0) {
+            timer.restart();
+        }
+    }
+    
+    void finished() {
+        if (--running == 0) {
+            timer.stop();
+            bar.setVisible(false);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package calc.ui;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.swing.SwingUtilities;
+
+/**
+ * Runs the calculations behind one part of the UI on a background thread
+ * and hands their results back on the Event Dispatch Thread, in the order
+ * they were submitted.
+ *
+ * <p>Input that arrives while work is in flight can be queued with
+ * {@link #run(Runnable)}; it runs once the earlier results have been
+ * applied, so the outcome is the same as if every step had run
+ * synchronously. {@link #cancel()} drops all queued input and pending
+ * results when they have gone stale.
+ *
+ * <p>Except for the background work itself, every method must be called
+ * on the Event Dispatch Thread.
+ */
+public final class TaskLane {
+    private final ExecutorService executor;
+    private final BusyIndicator busy;
+    private final List<Future<?>> inFlight = new ArrayList<>();
+    private final ArrayDeque<Runnable> queuedInput = new ArrayDeque<>();
+    // Bumped by cancel(); results from an older generation are discarded
+    private int generation;
+    
+    public TaskLane(String name, BusyIndicator busy) {
+        this.busy = busy;
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Computes {@code work} in the background, then passes its result to
+     * {@code onResult}, or the exception it threw to {@code onError}, on
+     * the Event Dispatch Thread. An {@link Error} is passed on wrapped in an
+     * {@link IllegalStateException}.
+     */
+    public <T> void submit(Supplier<T> work, Consumer<T> onResult, Consumer<RuntimeException> onError) {
+        int submittedIn = generation;
+        Future<?>[] future = new Future<?>[1];
+        future[0] = executor.submit(() -> {
+            T value = null;
+            RuntimeException error = null;
+            try {
+                value = work.get();
+            } catch (RuntimeException e) {
+                error = e;
+            } catch (Throwable e) {
+                // A stack overflow or out of memory must still finish the
+                // work, or the lane would wait for it forever
+                error = new IllegalStateException("Calculation failed: " + e, e);
+            }
+            T result = value;
+            RuntimeException failure = error;
+            SwingUtilities.invokeLater(() -> finish(submittedIn, future[0], result, failure, onResult, onError));
+        });
+        inFlight.add(future[0]);
+        busy.started();
+    }
+    
+    private <T> void finish(int submittedIn, Future<?> future, T result, RuntimeException error,
+                            Consumer<T> onResult, Consumer<RuntimeException> onError) {
+        if (submittedIn != generation) {
+            return;
+        }
+        inFlight.remove(future);
+        busy.finished();
+        if (error == null) {
+            onResult.accept(result);
+        } else {
+            onError.accept(error);
+        }
+        drainQueuedInput();
+    }
+    
+    /** Runs {@code input} now if the lane is idle, otherwise after the work ahead of it. */
+    public void run(Runnable input) {
+        if (inFlight.isEmpty() && queuedInput.isEmpty()) {
+            input.run();
+        } else {
+            queuedInput.add(input);
+        }
+    }
+    
+    // Queued input may submit new work, which the rest must wait for
+    private void drainQueuedInput() {
+        while (inFlight.isEmpty() && !queuedInput.isEmpty()) {
+            queuedInput.poll().run();
+        }
+    }
+    
+    public boolean isIdle() {
+        return inFlight.isEmpty() && queuedInput.isEmpty();
+    }
+    
+    /** Abandons all pending work and queued input. */
+    public void cancel() {
+        generation++;
+        for (Future<?> future : inFlight) {
+            future.cancel(true);
+            busy.finished();
+        }
+        inFlight.clear();
+        queuedInput.clear();
+    }
+}
@@ -0,0 +1,25 @@
+package calc.units;
+
+/** Physical quantity a unit measures; only units of the same dimension convert. */
+public enum Dimension {
+    LENGTH("Length"),
+    MASS("Mass"),
+    TIME("Time"),
+    DATA_SIZE("Data Size"),
+    TEMPERATURE("Temperature");
+    
+    private final String label;
+    
+    Dimension(String label) {
+        this.label = label;
+    }
+    
+    public String getLabel() {
+        return label;
+    }
+    
+    @Override
+    public String toString() {
+        return label;
+    }
+}
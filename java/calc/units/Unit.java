@@ -0,0 +1,68 @@
+package calc.units;
+
+/**
+ * A unit registered in a {@link UnitRegistry}. A value {@code v} in this unit
+ * is {@code (v - zero) * scale} in the base unit of its dimension, where the
+ * scale is kept as an exact ratio and the zero point is nonzero only for
+ * temperatures.
+ */
+public final class Unit {
+    private final int id;
+    private final String name;
+    private final String symbol;
+    private final Dimension dimension;
+    private final double scaleNumerator;
+    private final double scaleDenominator;
+    private final double zero;
+    
+    Unit(int id, String name, String symbol, Dimension dimension,
+         double scaleNumerator, double scaleDenominator, double zero) {
+        this.id = id;
+        this.name = name;
+        this.symbol = symbol;
+        this.dimension = dimension;
+        this.scaleNumerator = scaleNumerator;
+        this.scaleDenominator = scaleDenominator;
+        this.zero = zero;
+    }
+    
+    /** Index of this unit in its registry, used by the conversion methods. */
+    public int id() {
+        return id;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public String getSymbol() {
+        return symbol;
+    }
+    
+    public Dimension getDimension() {
+        return dimension;
+    }
+    
+    /** Size of one of this unit in the base unit, e.g. 0.3048 for feet. */
+    public double getScale() {
+        return scaleNumerator / scaleDenominator;
+    }
+    
+    /** Value of this unit at the base unit's zero, e.g. -273.15 for Celsius. */
+    public double getZero() {
+        return zero;
+    }
+    
+    double scaleNumerator() {
+        return scaleNumerator;
+    }
+    
+    double scaleDenominator() {
+        return scaleDenominator;
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+}
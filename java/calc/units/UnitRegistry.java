@@ -0,0 +1,221 @@
+package calc.units;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Table-driven unit conversion. Units are looked up by name or symbol once
+ * and then referred to by integer id. Conversion factors for every pair of
+ * units are precomputed into an N x N matrix, so converting a value is a
+ * single multiply with no string handling. Temperatures, whose scales
+ * have a zero point, convert as {@code (v * P + C) / Q} with integral
+ * {@code P} and {@code Q}, so 212 °F is exactly 100 °C.
+ *
+ * <p>Registries are immutable and thread-safe.
+ */
+public final class UnitRegistry {
+    
+    private static final UnitRegistry STANDARD = createStandard();
+    
+    private final List<Unit> units;
+    private final Map<String, Unit> byName;
+    // factors[from * size + to]; NaN where the dimensions differ. Cells with
+    // a divisor are affine: (v * factor + offset) / divisor.
+    private final double[] factors;
+    private final double[] offsets;
+    private final double[] divisors;
+    
+    private UnitRegistry(List<Unit> units) {
+        this.units = Collections.unmodifiableList(units);
+        this.byName = new HashMap<>();
+        for (Unit unit : units) {
+            byName.put(unit.getName(), unit);
+            byName.put(unit.getName().toLowerCase(Locale.ROOT), unit);
+            byName.put(unit.getSymbol(), unit);
+        }
+        int size = units.size();
+        factors = new double[size * size];
+        offsets = new double[size * size];
+        divisors = new double[size * size];
+        for (Unit from : units) {
+            for (Unit to : units) {
+                int cell = from.id() * size + to.id();
+                // (v - zf) * nf / df = (w - zt) * nt / dt, so with P = nf * dt
+                // and Q = df * nt: w = (v * P + zt * Q - zf * P) / Q
+                double p = from.scaleNumerator() * to.scaleDenominator();
+                double q = from.scaleDenominator() * to.scaleNumerator();
+                if (from.getDimension() != to.getDimension()) {
+                    factors[cell] = Double.NaN;
+                } else if (from == to) {
+                    factors[cell] = 1;
+                } else if (from.getZero() == 0 && to.getZero() == 0) {
+                    factors[cell] = p / q;
+                } else {
+                    factors[cell] = p;
+                    divisors[cell] = q;
+                    // Exact in decimal, so only the final rounding is left
+                    offsets[cell] = BigDecimal.valueOf(to.getZero()).multiply(BigDecimal.valueOf(q))
+                        .subtract(BigDecimal.valueOf(from.getZero()).multiply(BigDecimal.valueOf(p)))
+                        .doubleValue();
+                }
+            }
+        }
+    }
+    
+    /** Length, mass, time, data size and temperature units. */
+    public static UnitRegistry standard() {
+        return STANDARD;
+    }
+    
+    private static UnitRegistry createStandard() {
+        List<Unit> units = new ArrayList<>();
+        // Length, in meters
+        add(units, "Meters", "m", Dimension.LENGTH, 1);
+        add(units, "Centimeters", "cm", Dimension.LENGTH, 0.01);
+        add(units, "Kilometers", "km", Dimension.LENGTH, 1000);
+        add(units, "Inches", "in", Dimension.LENGTH, 0.0254);
+        add(units, "Feet", "ft", Dimension.LENGTH, 0.3048);
+        add(units, "Miles", "mi", Dimension.LENGTH, 1609.34);
+        add(units, "Millimeters", "mm", Dimension.LENGTH, 0.001);
+        add(units, "Yards", "yd", Dimension.LENGTH, 0.9144);
+        // Mass, in kilograms
+        add(units, "Kilograms", "kg", Dimension.MASS, 1);
+        add(units, "Grams", "g", Dimension.MASS, 0.001);
+        add(units, "Milligrams", "mg", Dimension.MASS, 1e-6);
+        add(units, "Tonnes", "t", Dimension.MASS, 1000);
+        add(units, "Pounds", "lb", Dimension.MASS, 0.45359237);
+        add(units, "Ounces", "oz", Dimension.MASS, 0.028349523125);
+        // Time, in seconds
+        add(units, "Seconds", "s", Dimension.TIME, 1);
+        add(units, "Milliseconds", "ms", Dimension.TIME, 0.001);
+        add(units, "Minutes", "min", Dimension.TIME, 60);
+        add(units, "Hours", "h", Dimension.TIME, 3600);
+        add(units, "Days", "d", Dimension.TIME, 86400);
+        add(units, "Weeks", "wk", Dimension.TIME, 604800);
+        // Data size, in bytes
+        add(units, "Bits", "bit", Dimension.DATA_SIZE, 0.125);
+        add(units, "Bytes", "B", Dimension.DATA_SIZE, 1);
+        add(units, "Kilobytes", "kB", Dimension.DATA_SIZE, 1e3);
+        add(units, "Megabytes", "MB", Dimension.DATA_SIZE, 1e6);
+        add(units, "Gigabytes", "GB", Dimension.DATA_SIZE, 1e9);
+        add(units, "Kibibytes", "KiB", Dimension.DATA_SIZE, 1024);
+        add(units, "Mebibytes", "MiB", Dimension.DATA_SIZE, 1024 * 1024);
+        add(units, "Gibibytes", "GiB", Dimension.DATA_SIZE, 1024 * 1024 * 1024);
+        // Temperature, in kelvin; scale as a ratio and the unit's value at 0 K
+        add(units, "Kelvin", "K", Dimension.TEMPERATURE, 1, 1, 0);
+        add(units, "Celsius", "°C", Dimension.TEMPERATURE, 1, 1, -273.15);
+        add(units, "Fahrenheit", "°F", Dimension.TEMPERATURE, 5, 9, -459.67);
+        return new UnitRegistry(units);
+    }
+    
+    private static void add(List<Unit> units, String name, String symbol, Dimension dimension, double scale) {
+        add(units, name, symbol, dimension, scale, 1, 0);
+    }
+    
+    private static void add(List<Unit> units, String name, String symbol, Dimension dimension,
+                            double scaleNumerator, double scaleDenominator, double zero) {
+        units.add(new Unit(units.size(), name, symbol, dimension, scaleNumerator, scaleDenominator, zero));
+    }
+    
+    public int size() {
+        return units.size();
+    }
+    
+    public List<Unit> units() {
+        return units;
+    }
+    
+    public List<Unit> units(Dimension dimension) {
+        List<Unit> matching = new ArrayList<>();
+        for (Unit unit : units) {
+            if (unit.getDimension() == dimension) {
+                matching.add(unit);
+            }
+        }
+        return matching;
+    }
+    
+    public Unit unit(int id) {
+        return units.get(id);
+    }
+    
+    /**
+     * Looks a unit up by name (in any case) or symbol.
+     *
+     * @throws IllegalArgumentException if there is no such unit
+     */
+    public Unit unit(String nameOrSymbol) {
+        Unit unit = byName.get(nameOrSymbol);
+        if (unit == null) {
+            unit = byName.get(nameOrSymbol.toLowerCase(Locale.ROOT));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Unknown unit: " + nameOrSymbol);
+        }
+        return unit;
+    }
+    
+    /** Id of a unit by name or symbol; resolve once and keep the id. */
+    public int id(String nameOrSymbol) {
+        return unit(nameOrSymbol).id();
+    }
+    
+    /**
+     * Converts a value between two units of the same dimension.
+     *
+     * @throws IllegalArgumentException if the units measure different dimensions
+     */
+    public double convert(double value, int from, int to) {
+        int cell = cell(from, to);
+        double divisor = divisors[cell];
+        return divisor == 0 ? value * factors[cell] : (value * factors[cell] + offsets[cell]) / divisor;
+    }
+    
+    public double convert(double value, String from, String to) {
+        return convert(value, id(from), id(to));
+    }
+    
+    /** Converts every value of {@code in} into the same index of {@code out}. */
+    public void convert(double[] in, double[] out, int from, int to) {
+        if (out.length < in.length) {
+            throw new IllegalArgumentException("Output has " + out.length
+                + " slots for " + in.length + " values");
+        }
+        convert(in, 0, out, 0, in.length, from, to);
+    }
+    
+    public void convert(double[] in, int inOffset, double[] out, int outOffset, int length, int from, int to) {
+        int cell = cell(from, to);
+        double factor = factors[cell];
+        double offset = offsets[cell];
+        double divisor = divisors[cell];
+        // Separate loops keep each body simple enough to vectorize
+        if (divisor == 0) {
+            for (int i = 0; i < length; i++) {
+                out[outOffset + i] = in[inOffset + i] * factor;
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                out[outOffset + i] = (in[inOffset + i] * factor + offset) / divisor;
+            }
+        }
+    }
+    
+    private int cell(int from, int to) {
+        int size = units.size();
+        if (from < 0 || from >= size || to < 0 || to >= size) {
+            throw new IllegalArgumentException("Unknown unit id: " + (from < 0 || from >= size ? from : to));
+        }
+        int cell = from * size + to;
+        if (Double.isNaN(factors[cell])) {
+            throw new IllegalArgumentException("Cannot convert " + units.get(from)
+                + " to " + units.get(to));
+        }
+        return cell;
+    }
+}